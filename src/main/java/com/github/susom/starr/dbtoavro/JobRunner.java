@@ -19,7 +19,7 @@ package com.github.susom.starr.dbtoavro;
 
 import com.github.susom.database.Config;
 import com.github.susom.database.DatabaseProvider;
-import com.github.susom.starr.dbtoavro.entity.AvroFile;
+import com.github.susom.database.Flavor;
 import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.jobs.Loader;
 import com.github.susom.starr.dbtoavro.jobs.impl.OracleLoadDataPump;
@@ -35,11 +35,14 @@ import io.reactivex.Completable;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.Writer;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Locale;
 import java.util.stream.Collectors;
 
@@ -50,6 +53,16 @@ public class JobRunner {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(JobRunner.class);
 
+  /**
+   * SQL Server driver settings for reading whole tables: results streamed rather than buffered in memory, the
+   * largest packets the driver allows, and plain forward-only result sets rather than server cursors
+   */
+  private static final String[] SQLSERVER_BULK_PROFILE = {
+    "responseBuffering=adaptive",
+    "packetSize=32767",
+    "selectMethod=direct"
+  };
+
   private final Job job;
   private final Config config;
   private final DatabaseProvider.Builder dbb;
@@ -58,12 +71,47 @@ public class JobRunner {
     this.config = config;
     this.job = job;
     this.dbb = DatabaseProvider
-      .pooledBuilder(config)
+      .pooledBuilder(withDriverProfile(config, job))
       .withSqlInExceptionMessages()
       .withConnectionAccess()
       .withSqlParameterLogging();
   }
 
+  /**
+   * Adds the bulk export settings to a SQL Server connection URL, unless sqlserver.bulk.profile is false
+   */
+  private static Config withDriverProfile(Config config, Job job) {
+    String url = config.getString("database.url");
+    if (job.flavor != Flavor.sqlserver || url == null || !config.getBooleanOrTrue("sqlserver.bulk.profile")) {
+      return config;
+    }
+    return Config.from().config(config).value("database.url", withBulkProfile(url)).get();
+  }
+
+  /**
+   * Adds the bulk export settings to a SQL Server connection URL. Settings already in the URL are kept as they are.
+   *
+   * @param url SQL Server JDBC URL
+   * @return URL with the settings it did not have appended
+   */
+  static String withBulkProfile(String url) {
+    StringBuilder profiled = new StringBuilder(url);
+    List<String> added = new ArrayList<>();
+    for (String setting : SQLSERVER_BULK_PROFILE) {
+      String key = setting.substring(0, setting.indexOf('=') + 1).toLowerCase(Locale.ROOT);
+      if (!url.toLowerCase(Locale.ROOT).replace(" ", "").contains(";" + key)) {
+        if (profiled.charAt(profiled.length() - 1) != ';') {
+          profiled.append(';');
+        }
+        profiled.append(setting);
+        added.add(setting);
+      }
+    }
+    // Only the settings, the URL may hold credentials
+    LOGGER.info("Added SQL Server bulk export settings {}", added);
+    return profiled.toString();
+  }
+
   /**
    * Entry point for running jobs
    *
@@ -97,29 +145,30 @@ public class JobRunner {
       .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeSerializer())
       .create();
       long startTime = System.nanoTime();
+      // Results are folded into per-table totals as they arrive, rather than collected, so memory stays bounded
+      // no matter how many queries a job has. Per-query details are in the checkpoint journal.
       return new AvroExporter(config, dbb).run(job, loader)
-        .toList()
-        .doOnSuccess(avro -> {
-          job.setOutputFromAvro(avro);
-          //job.failedAvro = avro.stream().filter(w -> !w.success).collect(Collectors.toList());//.forEach(LOGGER::info);;
-          job.runtimeMs = (System.nanoTime() - startTime) / 1000000;
-          Path output = Paths.get(job.logfile);
-          Files.write(output, gson.toJson(job).getBytes(StandardCharsets.UTF_8));
-          LOGGER.info("Wrote {}", job.logfile);
-          for (AvroFile avroFile : job.avro) {
-            if(avroFile.table != null)
-            {
-              if (avroFile.table.getColumns().stream().anyMatch(c -> !c.supported)) {
-                LOGGER.warn(String.format(Locale.ROOT, "Table %s had unsupported columns [%s]",
-                  avroFile.table.getName(), avroFile.table.getColumns().stream()
-                    .filter(c -> !c.supported)
-                    .map(c -> c.name + " (" + c.vendorType + "," + c.jdbcType + ")")
-                    .collect(Collectors.joining(", "))));
-              }
+        .doOnNext(avroFile -> {
+          if (job.addOutput(avroFile)) {
+            if (avroFile.table.getColumns().stream().anyMatch(c -> !c.supported)) {
+              LOGGER.warn(String.format(Locale.ROOT, "Table %s had unsupported columns [%s]",
+                avroFile.table.getName(), avroFile.table.getColumns().stream()
+                  .filter(c -> !c.supported)
+                  .map(c -> c.name + " (" + c.vendorType + "," + c.jdbcType + ")")
+                  .collect(Collectors.joining(", "))));
             }
           }
         })
-        .ignoreElement();
+        .ignoreElements()
+        .doOnComplete(() -> {
+          job.finishOutput();
+          job.runtimeMs = (System.nanoTime() - startTime) / 1000000;
+          Path output = Paths.get(job.logfile);
+          try (Writer writer = Files.newBufferedWriter(output, StandardCharsets.UTF_8)) {
+            gson.toJson(job, writer);
+          }
+          LOGGER.info("Wrote {}", job.logfile);
+        });
     } else {
       LOGGER.info("No destination, not exporting avro");
       return loader.run(job).ignoreElement().andThen(loader.stop());
@@ -25,6 +25,8 @@ import com.github.susom.database.ConfigFrom;
 import com.github.susom.database.Flavor;
 import com.github.susom.starr.dbtoavro.entity.SplitTableStrategy;
 import com.github.susom.starr.dbtoavro.entity.Job.Builder;
+import com.github.susom.starr.dbtoavro.functions.CodecSelector;
+import com.github.susom.starr.dbtoavro.util.CheckpointJournal;
 import java.io.File;
 import java.io.IOException;
 import java.io.PrintStream;
@@ -121,7 +123,7 @@ public class Main {
       .ofType(String.class)
       .withValuesSeparatedBy(',');
 
-    OptionSpec<String> tablesSplitOpt = parser.accepts("split-table", "comma-delimited list of schema.table that should be exported using row id (Oracle)")
+    OptionSpec<String> tablesSplitOpt = parser.accepts("split-table", "comma-delimited list of schema.table that should be exported in chunks using row id (Oracle) or physical page ranges (SQL Server)")
     .withRequiredArg()
     .ofType(String.class)
     .withValuesSeparatedBy(',');
@@ -131,7 +133,7 @@ public class Main {
       .ofType(String.class)
       .withValuesSeparatedBy(',');
 
-    OptionSpec<String> unionizeQueryOpt = parser.accepts("unionize-query", "comma-delimited list of schema.table that should be exported first")
+    OptionSpec<String> unionizeQueryOpt = parser.accepts("unionize-query", "comma-delimited list of schema.table (Oracle) whose adjacent ROWID chunks are merged, up to 100 per query")
       .withRequiredArg()
       .ofType(String.class)
       .withValuesSeparatedBy(',');
@@ -176,7 +178,8 @@ public class Main {
 
     OptionSpec<String> avroCodecOpt = parser
       .accepts("avro-codec",
-        String.format(Locale.ROOT, "Avro compression: null, snappy, deflate (default %s)", DEFAULT_AVRO_CODEC))
+        String.format(Locale.ROOT, "Avro compression: null, snappy, deflate[-level], zstd[-level], xz[-level], or auto"
+          + " to choose per table (default %s)", DEFAULT_AVRO_CODEC))
       .withRequiredArg()
       .ofType(String.class);
 
@@ -186,7 +189,7 @@ public class Main {
       .ofType(String.class);
 
     OptionSpec<Integer> avroSizeOpt = parser
-      .accepts("avro-size", "Target .avro file size before splitting (default: unlimited)")
+      .accepts("avro-size", "Target .avro file size in bytes on disk before splitting (default: unlimited)")
       .withRequiredArg()
       .ofType(Integer.class);
 
@@ -199,6 +202,14 @@ public class Main {
       .withRequiredArg()
       .ofType(Boolean.class);
 
+    OptionSpec<Void> resumeOpt = parser.accepts("resume",
+      "skip queries already exported by a previous run into the same destination, as recorded in its "
+        + CheckpointJournal.FILENAME);
+
+    OptionSpec<Void> leanRestoreOpt = parser.accepts("lean-restore",
+      "Oracle data pump restore without indexes, constraints, statistics, grants or triggers, only indexing the "
+        + "columns of split-table-strategy");
+
     OptionSpec<Void> helpOption = parser.acceptsAll(Arrays.asList("h", "help"), "show help").forHelp();
 
     OptionSpec<Boolean> continueOnExceptionOpt = parser.accepts("continueOnException", "if this argument is supplied, will log the exception and continue, otherwise, come out with failure from the process")
@@ -209,6 +220,9 @@ public class Main {
     //examples for non-numeric id table: split-table-strategy="IP_FLW_SHT_MEAS, fsd_id, like, 1, 10, 99" 
     //examples for numeric id table: split-table-strategy="HNO_NOTE_TEXT, note_csn_id, between, 10000000, 1000000, 9999999999"
     //examples for numeric id table with no optional values: split-table-strategy="HNO_NOTE_TEXT, note_csn_id, between, 10000000"
+    //examples for chunks of equal row counts from statistics: split-table-strategy="HNO_NOTE_TEXT, auto, note_csn_id, number, 200" (chunk count defaults to increment-factor)
+    //examples for date table: split-table-strategy="PAT_ENC, range, contact_date, date, 7d" (h, d, w, m or y, months if no unit) or "PAT_ENC, range, contact_date, date, adaptive"
+    //examples for composite or non-numeric keys, sqlserver and oracle: split-table-strategy="PAT_ENC, hash, \"pat_id;pat_enc_csn_id\", 32" (bucket count defaults to increment-factor)
     OptionSpec<String> splitTableStrategyOpt = parser.accepts("split-table-strategy", "specify split strategy for a table: \"table_name, column, operation, increment, start_range (optional), end_range (optional)\"")
       .withRequiredArg()
       .ofType(String.class);
@@ -256,15 +270,12 @@ public class Main {
       if (optionSet.has(avroCodecOpt)) {
         codec = optionSet.valueOf(avroCodecOpt).toLowerCase(Locale.ROOT);
       }
-      switch (codec) {
-        case "null":
-        case "snappy":
-        case "deflate":
-          break;
-        default:
-          parser.printHelpOn(System.out);
-          System.err.println("\nInvalid Avro compression codec specified");
-          exit(1);
+      try {
+        CodecSelector.fromString(codec);
+      } catch (IllegalArgumentException ex) {
+        parser.printHelpOn(System.out);
+        System.err.println("\nInvalid Avro compression codec specified: " + ex.getMessage());
+        exit(1);
       }
 
       boolean tidyTables = config.getBooleanOrFalse("tidy.table.names");
@@ -359,7 +370,9 @@ public class Main {
       }
       finalConfiguration.value("threads", String.valueOf(threads));
 
-      finalConfiguration.value("database.pool.size", String.valueOf(threads * 2));
+      // Writer threads may be widened up to threads.max, so size the connection pool for the most there can be
+      int maxThreads = Math.max(threads, config.getInteger("threads.max", threads));
+      finalConfiguration.value("database.pool.size", String.valueOf(maxThreads * 2));
 
       config = finalConfiguration.get();
 
@@ -377,6 +390,8 @@ public class Main {
         .columnExclusions(optionSet.valuesOf(columnExclusionsOpt))
         .splitTableStrategies(splitTableStrategy)
         .incrementFactor(incrementFactor)
+        .resume(optionSet.has(resumeOpt))
+        .leanRestore(optionSet.has(leanRestoreOpt))
         .backupDir(optionSet.valueOf(backupDirOpt))
         .backupFiles(optionSet.has(backupFilesOpt)
           ? optionSet.valuesOf(backupFilesOpt)
@@ -389,6 +404,8 @@ public class Main {
         .postSql(optionSet.valueOf(postSqlOpt))
         .timezone(System.getProperty("user.timezone"))
         .fetchRows(fetchRowCount)
+        .fetchBytes(config.getLong("fetch.bytes", 0L))
+        .lobPrefetchBytes(config.getInteger("lob.prefetch.bytes", 0))
         .avroSize(avroSize)
         .stringDatetime(stringDatetime)
         .stringDatetimeSuffix(stringDatetimeSuffix)
@@ -22,6 +22,7 @@ public class AvroFile {
   public AvroFile(Query queryObject, List<String> files, long exportTimeMs, long totalBytes, long exportRowCount, Statistics statistics) {
     this.tableName = queryObject.table.getName();
     this.table = queryObject.table;
+    this.queryObject = queryObject;
     this.query = queryObject.query;
     this.files = files;
     this.exportTimeMs = exportTimeMs;
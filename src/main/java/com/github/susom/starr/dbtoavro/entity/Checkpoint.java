@@ -0,0 +1,75 @@
+package com.github.susom.starr.dbtoavro.entity;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Simple pojo recording a query that was completely exported, one line of the checkpoint journal. The journal also
+ * serves as the per-query manifest of the job.
+ */
+public class Checkpoint {
+
+  public String key;
+  public String queryHash;
+  public String catalog;
+  public String schema;
+  public String tableName;
+  public String queryId;
+  public String query;
+  public List<String> files;
+  public long exportTimeMs;
+  public long totalBytes;
+  public long exportRowCount;
+  public LocalDateTime startTime;
+  public LocalDateTime endTime;
+
+  public Checkpoint() {
+  }
+
+  public Checkpoint(AvroFile avroFile) {
+    Query query = avroFile.queryObject;
+    this.key = key(query);
+    // A chunk that split off part of its range only covers what it kept
+    this.queryHash = hash(query.getExportQuery());
+    this.catalog = query.getCatalog();
+    this.schema = query.getSchema();
+    this.tableName = query.getName();
+    this.queryId = query.id;
+    this.query = query.getExportQuery();
+    this.files = avroFile.files;
+    this.exportTimeMs = avroFile.exportTimeMs;
+    this.totalBytes = avroFile.totalBytes;
+    this.exportRowCount = avroFile.exportRowCount;
+    this.startTime = avroFile.statistics.getStartTime();
+    this.endTime = avroFile.statistics.getEndTime();
+  }
+
+  /**
+   * Identifies a query across runs
+   */
+  public static String key(Query query) {
+    return query.getSchema() + "." + query.getName() + (query.id == null ? "" : "#" + query.id);
+  }
+
+  /**
+   * Fingerprint of the query text, so a query id re-used for different SQL (e.g. a changed split strategy) is not
+   * mistaken for a completed chunk
+   */
+  public static String hash(String sql) {
+    try {
+      byte[] digest = MessageDigest.getInstance("SHA-256").digest(sql.getBytes(StandardCharsets.UTF_8));
+      StringBuilder hex = new StringBuilder();
+      for (byte b : digest) {
+        hex.append(String.format(Locale.ROOT, "%02x", b));
+      }
+      return hex.toString();
+    } catch (NoSuchAlgorithmException ex) {
+      throw new IllegalStateException(ex);
+    }
+  }
+
+}
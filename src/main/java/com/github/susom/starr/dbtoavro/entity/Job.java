@@ -22,9 +22,9 @@ import com.github.susom.database.Flavor;
 
 import java.time.Duration;
 import java.util.ArrayList;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.stream.Collectors;
 
 /**
  * Simple pojo for storing an immutable job definition
@@ -52,14 +52,18 @@ public class Job {
   public final String stringDatetimeSuffix;
   public final String filenamePattern;
   public final int fetchRows;
+  public final long fetchBytes;
+  public final int lobPrefetchBytes;
   public final int avroSize;
   public final String codec;
   public final boolean tidyTables;
   public final boolean continueOnException;
   public final List<SplitTableStrategy> splitTableStrategies;
   public final int incrementFactor;
+  public final boolean resume;
+  public final boolean leanRestore;
 
-  public transient List<AvroFile> avro;
+  private final transient Map<String, Output> outputs = new LinkedHashMap<>();
   public long runtimeMs;
   public List<Output> outputList;
   public List<AvroFile> failedAvro;
@@ -86,50 +90,64 @@ public class Job {
     this.stringDatetimeSuffix = builder.stringDatetimeSuffix;
     this.filenamePattern = builder.filenamePattern;
     this.fetchRows = builder.fetchRows;
+    this.fetchBytes = builder.fetchBytes;
+    this.lobPrefetchBytes = builder.lobPrefetchBytes;
     this.avroSize = builder.avroSize;
     this.codec = builder.codec;
     this.tidyTables = builder.tidyTables;
     this.continueOnException = builder.continueOnException;
     this.splitTableStrategies = builder.splitTableStrategies;
     this.incrementFactor = builder.incrementFactor;
+    this.resume = builder.resume;
+    this.leanRestore = builder.leanRestore;
   }
 
-  public void setOutputFromAvro(List<AvroFile> avroList) {
-    avro = avroList;
-    Map<String, List<AvroFile>> map = avro.stream().filter(w -> w.tableName != null).collect(Collectors.groupingBy(w -> w.tableName));
-    outputList = new ArrayList<Output>();
-    map.entrySet().stream().forEach(e -> {
-      Output output = new Output();
-      output.queries = new ArrayList<String>();
-      output.statisticsList = new ArrayList<Statistics>();
-      output.tableName = e.getKey();
-      List<AvroFile> data = e.getValue();
-      AvroFile af = data.get(0);
-      output.catalog = af.table.getCatalog();
-      output.schema = af.table.getSchema();
-      output.splitStrategies = af.table.getSplitStrategies();
-      //output.columns = af.table.getColumns();
-      output.dbRowCount = af.table.getDbRowCount();
-      output.tableQueryCount = af.table.getQueryCount();
-
+  /**
+   * Adds an exported query to the running totals of its table. Only these per-table totals are kept in memory, the
+   * details of each query are streamed to the checkpoint journal as they complete.
+   *
+   * @param avroFile result of an exported query
+   * @return true if this is the first query seen for its table
+   */
+  public boolean addOutput(AvroFile avroFile) {
+    Table table = avroFile.table;
+    if (table == null) {
+      return false;
+    }
+    String key = table.getSchema() + "." + table.getName();
+    Output output = outputs.get(key);
+    boolean first = output == null;
+    if (first) {
+      output = new Output();
+      output.tableName = table.getName();
+      output.catalog = table.getCatalog();
+      output.schema = table.getSchema();
+      output.splitStrategies = table.getSplitStrategies();
+      output.dbRowCount = table.getDbRowCount();
+      output.tableQueryCount = table.getQueryCount();
       output.exportRowCount = 0L;
-      output.filesCount = 0;
-      output.totalBytes = 0;
-      output.startTime = af.statistics.getStartTime();
-      output.endTime = af.statistics.getEndTime();
-
-      data.forEach(x -> {
-        output.queries.add(String.format("Id- %s: query- %s", x.queryId, x.query));
-        output.statisticsList.add(x.statistics);
-        output.exportRowCount += x.exportRowCount;
-        output.filesCount += x.files.size();
-        output.totalBytes += x.totalBytes;
-        output.startTime = (x.statistics.getStartTime().isBefore(output.startTime)) ? x.statistics.getStartTime() : output.startTime;
-        output.endTime = (x.statistics.getEndTime().isAfter(output.endTime)) ? x.statistics.getEndTime() : output.endTime;
-      });
-      output.timeTakenInSeconds = Duration.between(output.startTime, output.endTime).getSeconds();
-      outputList.add(output);
-    });
+      output.startTime = avroFile.statistics.getStartTime();
+      output.endTime = avroFile.statistics.getEndTime();
+      outputs.put(key, output);
+    }
+    output.exportRowCount += avroFile.exportRowCount;
+    output.filesCount += avroFile.files.size();
+    output.totalBytes += avroFile.totalBytes;
+    if (avroFile.statistics.getStartTime().isBefore(output.startTime)) {
+      output.startTime = avroFile.statistics.getStartTime();
+    }
+    if (avroFile.statistics.getEndTime().isAfter(output.endTime)) {
+      output.endTime = avroFile.statistics.getEndTime();
+    }
+    output.timeTakenInSeconds = Duration.between(output.startTime, output.endTime).getSeconds();
+    return first;
+  }
+
+  /**
+   * Publishes the per-table totals for the job log once the export is complete
+   */
+  public void finishOutput() {
+    outputList = new ArrayList<>(outputs.values());
   }
 
   public static class Builder {
@@ -155,12 +173,16 @@ public class Job {
     private String stringDatetimeSuffix;
     private String filenamePattern;
     private int fetchRows;
+    private long fetchBytes;
+    private int lobPrefetchBytes;
     private int avroSize;
     private String codec;
     private boolean tidyTables;
     private boolean continueOnException;
     private List<SplitTableStrategy> splitTableStrategies;
     private int incrementFactor;
+    private boolean resume;
+    private boolean leanRestore;
 
     public Builder() {
     }
@@ -274,6 +296,16 @@ public class Job {
       return this;
     }
 
+    public Builder fetchBytes(long fetchBytes) {
+      this.fetchBytes = fetchBytes;
+      return this;
+    }
+
+    public Builder lobPrefetchBytes(int lobPrefetchBytes) {
+      this.lobPrefetchBytes = lobPrefetchBytes;
+      return this;
+    }
+
     public Builder avroSize(int avroSize) {
       this.avroSize = avroSize;
       return this;
@@ -304,5 +336,15 @@ public class Job {
       return this;
     }
 
+    public Builder resume(boolean resume) {
+      this.resume = resume;
+      return this;
+    }
+
+    public Builder leanRestore(boolean leanRestore) {
+      this.leanRestore = leanRestore;
+      return this;
+    }
+
   }
 }
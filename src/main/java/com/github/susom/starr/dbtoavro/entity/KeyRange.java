@@ -0,0 +1,267 @@
+package com.github.susom.starr.dbtoavro.entity;
+
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Key range of a chunk that is exported in key order, so the rest of the range can be handed to other threads while
+ * the chunk is still being written. Numeric keys are used as is, date keys as epoch milliseconds.
+ *
+ * <p>The range runs from lo (inclusive) to hi (exclusive). Either end may be open, in which case the bound is only an
+ * estimate used to pick split points, and rows beyond it still belong to this range.
+ *
+ * <p>A range over a unique numeric key can also be written in pages. The files of a page are kept once it is
+ * complete, so a retry resumes from the first key of the page that failed rather than from the start of the range.
+ */
+public class KeyRange {
+
+  /**
+   * Date split points are whole minutes, which every SQL Server date type can represent exactly
+   */
+  private static final long DATE_GRANULARITY_MS = 60_000L;
+
+  private static final DateTimeFormatter DATE_LITERAL =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss", Locale.ROOT);
+
+  private final String select;
+  private String filter;
+  public final String column;
+  public final boolean date;
+  private final long lo;
+  private final boolean openLo;
+  private long hi;
+  private boolean openHi;
+  private long next;
+  private boolean running;
+  private boolean split;
+  private long pageRows;
+  private transient Long resumeKey;
+  private transient Map<String, Long> pages;
+  private transient int lastPart;
+
+  /**
+   * @param select query up to, but not including, the where clause
+   * @param column key column
+   * @param date true if the key is a date, as epoch milliseconds
+   * @param lo first key
+   * @param openLo include keys below lo
+   * @param hi key after the last
+   * @param openHi include keys from hi on
+   */
+  public KeyRange(String select, String column, boolean date, long lo, boolean openLo, long hi, boolean openHi) {
+    this.select = select;
+    this.column = column;
+    this.date = date;
+    this.lo = lo;
+    this.openLo = openLo;
+    this.hi = hi;
+    this.openHi = openHi;
+  }
+
+  /**
+   * Copy of this range that only reads the rows matching a fixed condition as well, for example a single partition
+   *
+   * @param filter condition and-ed with the key bounds
+   * @return range over the same keys, with the same page size
+   */
+  public synchronized KeyRange within(String filter) {
+    KeyRange range = new KeyRange(select, column, date, lo, openLo, hi, openHi);
+    range.filter = filter;
+    range.pageRows = pageRows;
+    return range;
+  }
+
+  /**
+   * Called by the writer before it runs the query, which starts reading from the beginning of the range again
+   */
+  public synchronized void restart() {
+    next = resumeKey != null ? resumeKey : lo;
+    running = true;
+  }
+
+  /**
+   * Rows per page, only set for unique numeric keys
+   *
+   * @param pageRows rows per page, zero to write the range in one go
+   */
+  public synchronized void setPageRows(long pageRows) {
+    this.pageRows = date ? 0 : pageRows;
+  }
+
+  public synchronized long getPageRows() {
+    return pageRows;
+  }
+
+  /**
+   * Called by the writer once a page is complete, with the first key after it. A page may span several files when
+   * the output is also split on size.
+   *
+   * @param files files the page was written to, in order, with the rows in each
+   * @param lastPart part number of the last file of the page
+   * @param nextKey first key of the next page
+   */
+  public synchronized void page(Map<String, Long> files, int lastPart, long nextKey) {
+    if (pages == null) {
+      pages = new LinkedHashMap<>();
+    }
+    pages.putAll(files);
+    this.lastPart = lastPart;
+    resumeKey = nextKey;
+  }
+
+  /**
+   * @return files of the pages completed by earlier attempts, in order, with the rows in each
+   */
+  public synchronized Map<String, Long> getPages() {
+    return pages == null ? new LinkedHashMap<>() : new LinkedHashMap<>(pages);
+  }
+
+  /**
+   * @return part number of the last file of the completed pages, zero if there are none
+   */
+  public synchronized int getLastPart() {
+    return lastPart;
+  }
+
+  /**
+   * Called once the pages have been moved to their final names, or given up on
+   */
+  public synchronized void clearPages() {
+    pages = null;
+    lastPart = 0;
+    resumeKey = null;
+  }
+
+  /**
+   * @return query for the rest of the range after the completed pages, in key order
+   */
+  public synchronized String resumeSql() {
+    if (resumeKey == null) {
+      return sql();
+    }
+    return select + " where " + condition(resumeKey, false) + " ORDER BY " + column;
+  }
+
+  /**
+   * Called by the writer for every row, in key order
+   *
+   * @param key key of the row just fetched
+   * @return false if the row was split off to another chunk, in which case the writer must stop
+   */
+  public synchronized boolean advance(long key) {
+    if (!openHi && key >= hi) {
+      return false;
+    }
+    next = Math.max(next, key + 1);
+    return true;
+  }
+
+  /**
+   * Called by the writer once it has stopped, after which the range can no longer be split
+   */
+  public synchronized void finish() {
+    running = false;
+  }
+
+  /**
+   * Splits the part of the range the writer has not reached yet. The writer keeps the first piece and the rest are
+   * returned, so this range ends where the first returned range starts.
+   *
+   * @param parts maximum number of ranges to split off
+   * @return ranges split off, empty if the writer has finished or too little of the range is left
+   */
+  public synchronized List<KeyRange> split(int parts) {
+    List<KeyRange> ranges = new ArrayList<>();
+    if (!running || parts < 1) {
+      return ranges;
+    }
+    long from = Math.max(next, lo);
+    long to = hi;
+    long width = (to - from) / (parts + 1);
+    if (width < (date ? DATE_GRANULARITY_MS : 1)) {
+      return ranges;
+    }
+    List<Long> cuts = new ArrayList<>();
+    for (int i = 1; i <= parts; i++) {
+      long cut = from + width * i;
+      if (date) {
+        cut -= Math.floorMod(cut, DATE_GRANULARITY_MS);
+      }
+      if (cut > from && cut < to && (cuts.isEmpty() || cut > cuts.get(cuts.size() - 1))) {
+        cuts.add(cut);
+      }
+    }
+    if (cuts.isEmpty()) {
+      return ranges;
+    }
+    for (int i = 0; i < cuts.size(); i++) {
+      boolean last = i == cuts.size() - 1;
+      KeyRange range = new KeyRange(select, column, date, cuts.get(i), false, last ? to : cuts.get(i + 1),
+          last && openHi);
+      range.filter = filter;
+      range.pageRows = pageRows;
+      ranges.add(range);
+    }
+    hi = cuts.get(0);
+    openHi = false;
+    split = true;
+    return ranges;
+  }
+
+  /**
+   * @return true if part of the original range has been split off
+   */
+  public synchronized boolean isSplit() {
+    return split;
+  }
+
+  /**
+   * @return query for the current range, in key order
+   */
+  public synchronized String sql() {
+    return select + " where " + condition() + " ORDER BY " + column;
+  }
+
+  /**
+   * @return where clause for the current range
+   */
+  public synchronized String condition() {
+    return condition(lo, openLo);
+  }
+
+  private String condition(long lo, boolean openLo) {
+    List<String> conditions = new ArrayList<>();
+    if (filter != null) {
+      conditions.add(filter);
+    }
+    if (!openLo) {
+      conditions.add(column + " >= " + literal(lo));
+    }
+    if (!openHi) {
+      conditions.add(column + " < " + literal(hi));
+    }
+    return conditions.isEmpty() ? "1 = 1" : String.join(" AND ", conditions);
+  }
+
+  private String literal(long key) {
+    if (!date) {
+      return String.valueOf(key);
+    }
+    // Colons are escaped for the database library
+    return "'" + LocalDateTime.ofInstant(Instant.ofEpochMilli(key), ZoneId.systemDefault()).format(DATE_LITERAL)
+        .replace(":", "::") + "'";
+  }
+
+  @Override
+  public synchronized String toString() {
+    return String.format(Locale.ROOT, "%s [%s, %s)", column, openLo ? "*" : literal(lo), openHi ? "*" : literal(hi));
+  }
+
+}
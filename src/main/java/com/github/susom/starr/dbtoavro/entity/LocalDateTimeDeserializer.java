@@ -10,7 +10,7 @@ import com.google.gson.JsonDeserializer;
 import com.google.gson.JsonElement;
 import com.google.gson.JsonParseException;
 
-class LocalDateTimeDeserializer implements JsonDeserializer < LocalDateTime > {
+public class LocalDateTimeDeserializer implements JsonDeserializer < LocalDateTime > {
   @Override
   public LocalDateTime deserialize(JsonElement json, Type typeOfT, JsonDeserializationContext context)
     throws JsonParseException {
@@ -10,8 +10,6 @@ public class Output {
   public String schema;
   public List<SplitTableStrategy> splitStrategies;
   //public List<Column> columns;
-  public List<String> queries;
-  public List<Statistics> statisticsList;
 
   public Long dbRowCount;
   public Long exportRowCount;
@@ -17,8 +17,13 @@ public class Query {
   private final String startRowid;
   private final String endRowid;
   public final int tableQueryCount;
+  public final transient KeyRange keyRange;
 
   public Query(Table table, String query, String id, String startRowid, String endRowid) {
+    this(table, query, id, startRowid, endRowid, null);
+  }
+
+  public Query(Table table, String query, String id, String startRowid, String endRowid, KeyRange keyRange) {
     this.table = table;
     this.catalog = table.getCatalog();
     this.schema = table.getSchema();
@@ -29,12 +34,20 @@ public class Query {
     this.id = id;
     this.startRowid = startRowid;
     this.endRowid = endRowid;
+    this.keyRange = keyRange;
   }
 
   public String getQuery() {
     return this.query;
   }
 
+  /**
+   * Query to run, narrowed to what is left of the key range if part of it has been split off to other chunks
+   */
+  public String getExportQuery() {
+    return keyRange != null && keyRange.isSplit() ? keyRange.sql() : query;
+  }
+
   public String getCatalog() {
     return this.catalog;
   }
@@ -0,0 +1,123 @@
+package com.github.susom.starr.dbtoavro.entity;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Simple pojo holding the columns, primary keys, row counts, sizes and partitions of every table in a schema, read in bulk
+ */
+public class SchemaCatalog {
+
+  private final Map<String, List<Column>> columns = new HashMap<>();
+  private final Map<String, Long> rowCounts = new HashMap<>();
+  private final Map<String, Long> rowLengths = new HashMap<>();
+  private final Map<String, Long> segmentBlocks = new HashMap<>();
+  private final Map<String, Long> segmentBytes = new HashMap<>();
+  private final Map<String, String> partitionFunctions = new HashMap<>();
+  private final Map<String, String> partitionColumns = new HashMap<>();
+  private final Map<String, Map<Integer, Long>> partitionRows = new HashMap<>();
+  private transient String fingerprint;
+
+  public void addColumn(String table, Column column) {
+    columns.computeIfAbsent(table, t -> new ArrayList<>()).add(column);
+  }
+
+  public void setPrimaryKey(String table, String column) {
+    getColumns(table).stream().filter(c -> c.name.equals(column)).forEach(c -> c.primaryKey = true);
+  }
+
+  public void setRowCount(String table, long rowCount) {
+    rowCounts.put(table, rowCount);
+  }
+
+  public void setRowLength(String table, long rowLength) {
+    rowLengths.put(table, rowLength);
+  }
+
+  public void setSegmentSize(String table, long blocks, long bytes) {
+    segmentBlocks.put(table, blocks);
+    segmentBytes.put(table, bytes);
+  }
+
+  public void addPartition(String table, String function, String column, int partition, long rows) {
+    partitionFunctions.put(table, function);
+    partitionColumns.put(table, column);
+    partitionRows.computeIfAbsent(table, t -> new LinkedHashMap<>()).put(partition, rows);
+  }
+
+  /**
+   * @return columns in ordinal order, empty if the table is unknown
+   */
+  public List<Column> getColumns(String table) {
+    return columns.getOrDefault(table, Collections.emptyList());
+  }
+
+  /**
+   * @return row count from the database statistics, zero if unknown
+   */
+  public long getRowCount(String table) {
+    return rowCounts.getOrDefault(table, 0L);
+  }
+
+  /**
+   * @return average row length in bytes from the database statistics, zero if unknown
+   */
+  public long getRowLength(String table) {
+    return rowLengths.getOrDefault(table, 0L);
+  }
+
+  /**
+   * @return blocks allocated to the table and its partitions, zero if unknown
+   */
+  public long getSegmentBlocks(String table) {
+    return segmentBlocks.getOrDefault(table, 0L);
+  }
+
+  /**
+   * @return bytes allocated to the table and its partitions, zero if unknown
+   */
+  public long getSegmentBytes(String table) {
+    return segmentBytes.getOrDefault(table, 0L);
+  }
+
+  /**
+   * @return partition function of the table, null if it is not partitioned
+   */
+  public String getPartitionFunction(String table) {
+    return partitionFunctions.get(table);
+  }
+
+  /**
+   * @return partitioning column of the table, null if it is not partitioned
+   */
+  public String getPartitionColumn(String table) {
+    return partitionColumns.get(table);
+  }
+
+  /**
+   * @return rows of each partition in partition order, empty if the table is not partitioned
+   */
+  public Map<Integer, Long> getPartitionRows(String table) {
+    return partitionRows.getOrDefault(table, Collections.emptyMap());
+  }
+
+  /**
+   * @return fingerprint of the schema when this catalog was read
+   */
+  public String getFingerprint() {
+    return fingerprint;
+  }
+
+  public void setFingerprint(String fingerprint) {
+    this.fingerprint = fingerprint;
+  }
+
+  public int getTableCount() {
+    return columns.size();
+  }
+
+}
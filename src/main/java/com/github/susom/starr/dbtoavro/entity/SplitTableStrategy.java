@@ -1,10 +1,13 @@
 package com.github.susom.starr.dbtoavro.entity;
 
+import java.time.temporal.ChronoUnit;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 import java.util.stream.Collectors;
 
 import java.util.StringTokenizer;
@@ -14,6 +17,8 @@ import java.util.StringTokenizer;
  */
 public class SplitTableStrategy {
 
+  private static final Pattern DATE_INCREMENT = Pattern.compile("(\\d+)\\s*([hdwmyHDWMY]?)");
+
   private String tableName;
   private String column;
   private List<String> columns;
@@ -22,6 +27,8 @@ public class SplitTableStrategy {
   private String subColumn;
 
   private Long increment;
+  private ChronoUnit incrementUnit = ChronoUnit.MONTHS;
+  private boolean adaptive;
   private Long startRange;
   private Long endRange;
   private String prefix;
@@ -32,6 +39,7 @@ public class SplitTableStrategy {
   private Date endRangeDate;
 
   //table_name, operation, column(s), keyDataType (optional), increment (optional), start_range (optional), end_range (optional), prefix (optional)
+  //table_name, hash, column(s), buckets (optional)
   public SplitTableStrategy(String x) {    
 
     //List<String> data = Collections.list(new StringTokenizer(((String)x), ",")).stream().map(token -> (String) token).collect(Collectors.toList());
@@ -52,10 +60,24 @@ public class SplitTableStrategy {
           this.subColumn = data.get(++index).trim(); //index = 4
         } 
       }
-      if (data.size() > (index + 1)) { //index + 1 = 3
+      if (this.operation == SplitTableStrategyOperation.hash) {
+        this.columns = Arrays.stream(this.column.replaceAll("\"", "").split(";"))
+          .map(String::trim).collect(Collectors.toList());
+        this.column = null;
+        if (data.size() > (index + 1)) {
+          this.increment = Long.parseLong(data.get(++index).trim()); //index = 3
+          if (this.increment < 1) {
+            throw new IllegalArgumentException("Invalid hash bucket count " + this.increment + ", expected 1 or more");
+          }
+        }
+      } else if (data.size() > (index + 1)) { //index + 1 = 3
         this.keyDataType = KeyDataType.valueOf(data.get(++index).trim()); //index = 3
         if (data.size() > (index + 1)) { //index + 1 = 4
-          this.increment = Long.parseLong(data.get(++index).trim()); //index = 4
+          if (keyDataType == KeyDataType.date) {
+            parseDateIncrement(data.get(++index).trim()); //index = 4
+          } else {
+            this.increment = Long.parseLong(data.get(++index).trim()); //index = 4
+          }
           if (data.size() >= (index + 2)) { //index = 6
             if (keyDataType == KeyDataType.number) {
               this.startRange = Long.parseLong(data.get(++index).trim()); //index = 5
@@ -75,6 +97,38 @@ public class SplitTableStrategy {
 
   }
 
+  /**
+   * Date increments are a count with an optional unit, h(ours), d(ays), w(eeks), m(onths, the default) or y(ears),
+   * e.g. 7d. "adaptive" sizes each chunk from the row counts instead.
+   */
+  private void parseDateIncrement(String value) {
+    if (value.equalsIgnoreCase("adaptive")) {
+      this.adaptive = true;
+      return;
+    }
+    Matcher matcher = DATE_INCREMENT.matcher(value);
+    if (!matcher.matches() || Long.parseLong(matcher.group(1)) < 1) {
+      throw new IllegalArgumentException("Invalid date increment " + value + ", expected e.g. 6h, 1d, 1w, 3m, 1y or adaptive");
+    }
+    this.increment = Long.parseLong(matcher.group(1));
+    switch (matcher.group(2).toLowerCase(Locale.ROOT)) {
+      case "h":
+        this.incrementUnit = ChronoUnit.HOURS;
+        break;
+      case "d":
+        this.incrementUnit = ChronoUnit.DAYS;
+        break;
+      case "w":
+        this.incrementUnit = ChronoUnit.WEEKS;
+        break;
+      case "y":
+        this.incrementUnit = ChronoUnit.YEARS;
+        break;
+      default:
+        this.incrementUnit = ChronoUnit.MONTHS;
+    }
+  }
+
   public String getTableName() {
     return tableName;
   }
@@ -151,6 +205,20 @@ public class SplitTableStrategy {
     this.increment = increment;
   }
 
+  /**
+   * @return true if date chunks are sized from the row counts rather than by an increment
+   */
+  public boolean isAdaptive() {
+    return adaptive;
+  }
+
+  /**
+   * @return unit of a date increment, months unless given
+   */
+  public ChronoUnit getIncrementUnit() {
+    return incrementUnit;
+  }
+
   public String getPrefix() {
     return prefix;
   }
@@ -173,12 +241,15 @@ public class SplitTableStrategy {
 
   @Override
   public String toString() {
-    return String.format(Locale.ROOT, "tableName=%s, column=%s, keyDataType=%s, operation=%s, increment=%s, startRange=%s, endRange=%s, startRangeString=%s, endRangeString=%s, startRangeDate=%s, endRangeDate=%s, prefix=%s, subOperation=%s, subColumn=%s",
+    return String.format(Locale.ROOT, "tableName=%s, column=%s, columns=%s, keyDataType=%s, operation=%s, increment=%s, incrementUnit=%s, adaptive=%s, startRange=%s, endRange=%s, startRangeString=%s, endRangeString=%s, startRangeDate=%s, endRangeDate=%s, prefix=%s, subOperation=%s, subColumn=%s",
       tableName,
       column, 
+      columns,
       keyDataType, 
       operation, 
       increment, 
+      incrementUnit,
+      adaptive,
       startRange,
       endRange, 
       startRangeString,
@@ -1,5 +1,5 @@
 package com.github.susom.starr.dbtoavro.entity;
 
 public enum SplitTableStrategyOperation {
-  like, between, range, query
+  like, between, range, query, auto, hash
 }
@@ -13,6 +13,7 @@ public class Table {
   private String name;
   private transient List<Column> columns;
   private long dbRowCount;
+  private long avgRowLength;
   private int queryCount;
   private List<SplitTableStrategy> splitStrategies;
 
@@ -64,6 +65,17 @@ public class Table {
     this.dbRowCount = dbRowCount;
   }
 
+  /**
+   * @return average row length in bytes from the database statistics, zero if unknown
+   */
+  public long getAvgRowLength() {
+    return avgRowLength;
+  }
+
+  public void setAvgRowLength(long avgRowLength) {
+    this.avgRowLength = avgRowLength;
+  }
+
   public List<Column> getColumns() {
     return columns;
   }
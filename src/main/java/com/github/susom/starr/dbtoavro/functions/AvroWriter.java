@@ -0,0 +1,578 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.functions;
+
+import com.github.susom.starr.dbtoavro.entity.KeyRange;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadLocalRandom;
+import org.apache.avro.Schema;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+import org.apache.commons.lang.StringUtils;
+
+/**
+ * Runs a query and streams its rows into one or more Avro files, encoding straight from the JDBC result set with a
+ * {@link ResultSetDatumWriter}.
+ *
+ * <p>The calling thread only fetches and encodes rows into uncompressed blocks. Full blocks are handed to a shared
+ * compression pool, and compressed blocks are appended to the file in their original order, so the next block is
+ * being fetched while earlier ones are compressed. Files are standard Avro object container files.
+ *
+ * <p>When splitting, files are rolled on the compressed bytes actually written, at the block boundary before the
+ * target size would be exceeded, so files come out evenly sized regardless of codec or column mix. A file only
+ * exceeds the target if its first block alone is larger.
+ *
+ * <p>Files are written under a temporary name and only renamed to their final names once the whole query has been
+ * written, so a crash never leaves a partial file that looks complete.
+ *
+ * <p>A query exported in key order can be given its {@link KeyRange}. The writer then reports each key as it goes,
+ * and stops early if the rest of the range has been split off to other chunks. If the range is written in pages, a
+ * new file is started every page, and the files of completed pages are kept when the export fails. The next attempt
+ * carries on from the first key after them into the next file.
+ */
+public class AvroWriter {
+
+  /**
+   * Uncompressed size at which a block is handed off for compression
+   */
+  static final int BLOCK_SIZE = 512 * 1024;
+
+  /**
+   * Blocks a single writer may have waiting on the compression pool, bounding memory per writer
+   */
+  static final int MAX_BLOCKS_IN_FLIGHT = 8;
+
+  private static final byte[] MAGIC = new byte[] {'O', 'b', 'j', 1};
+  private static final int SYNC_SIZE = 16;
+
+  static final String TEMP_SUFFIX = ".tmp";
+
+  private final CodecSelector codecSelector;
+  private final ExecutorService compressionPool;
+  private final int fetchSize;
+  private final long splitBytes;
+  private final ExportMetrics metrics;
+  private StatementSetup statementSetup;
+
+  /**
+   * @param codecSelector chooses the compression codec for each table
+   * @param compressionPool pool to compress blocks on, or null to compress on the calling thread
+   * @param fetchSize JDBC fetch size
+   * @param splitBytes maximum size of each file on disk, or zero for a single file
+   */
+  public AvroWriter(CodecSelector codecSelector, ExecutorService compressionPool, int fetchSize, long splitBytes) {
+    this(codecSelector, compressionPool, fetchSize, splitBytes, null);
+  }
+
+  /**
+   * @param codecSelector chooses the compression codec for each table
+   * @param compressionPool pool to compress blocks on, or null to compress on the calling thread
+   * @param fetchSize JDBC fetch size
+   * @param splitBytes maximum size of each file on disk, or zero for a single file
+   * @param metrics totals to add the rows fetched to, or null
+   */
+  public AvroWriter(CodecSelector codecSelector, ExecutorService compressionPool, int fetchSize, long splitBytes,
+      ExportMetrics metrics) {
+    this.codecSelector = codecSelector;
+    this.compressionPool = compressionPool;
+    this.fetchSize = fetchSize;
+    this.splitBytes = splitBytes;
+    this.metrics = metrics;
+  }
+
+  /**
+   * Database specific tuning of the statement, applied after the fetch size and before the query runs
+   *
+   * @return this writer
+   */
+  public AvroWriter withStatementSetup(StatementSetup statementSetup) {
+    this.statementSetup = statementSetup;
+    return this;
+  }
+
+  /**
+   * Executes the query and writes the results. The path may contain %{PART}, which is replaced with the file number
+   * when the output is split.
+   *
+   * @param connection connection to run the query on
+   * @param sql query to export
+   * @param path path of the Avro file(s)
+   * @param namespace Avro record namespace
+   * @param name Avro record name
+   * @return files written, in order, with the number of rows in each
+   */
+  public Map<String, Long> write(Connection connection, String sql, String path, String namespace, String name)
+      throws SQLException, IOException {
+    return write(connection, sql, path, namespace, name, null);
+  }
+
+  /**
+   * Executes a query ordered by key and writes the results, stopping at the end of the key range, which may move
+   * while the query runs.
+   *
+   * @param connection connection to run the query on
+   * @param sql query to export, ordered by the key column
+   * @param path path of the Avro file(s)
+   * @param namespace Avro record namespace
+   * @param name Avro record name
+   * @param range key range of the query, or null to write every row
+   * @return files written, in order, with the number of rows in each
+   */
+  public Map<String, Long> write(Connection connection, String sql, String path, String namespace, String name,
+      KeyRange range) throws SQLException, IOException {
+    // Pages need a file number for each page
+    KeyRange paged = range != null && range.getPageRows() > 0 && path.contains("%{PART}") ? range : null;
+    if (paged != null && !paged.getPages().isEmpty()) {
+      sql = paged.resumeSql();
+    }
+    if (range != null) {
+      range.restart();
+    }
+    try (Statement statement = connection.createStatement(ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY)) {
+      statement.setFetchSize(fetchSize);
+      if (statementSetup != null) {
+        statementSetup.setup(statement);
+      }
+      long queryStart = System.nanoTime();
+      try (ResultSet rs = statement.executeQuery(unescape(sql))) {
+        // The query has done its planning, sorting or waiting on locks by the time results start to come back
+        if (metrics != null) {
+          metrics.firstRow(System.nanoTime() - queryStart);
+        }
+        ResultSetDatumWriter datumWriter = ResultSetDatumWriter.forResultSet(rs.getMetaData(), namespace, name);
+        int keyColumn = range == null ? 0 : keyColumn(rs.getMetaData(), range);
+        if (range != null && keyColumn == 0) {
+          // Without the key the writer cannot tell where to stop, so the range must not be split
+          range.finish();
+          if (paged != null) {
+            // Pages are cut, and resumed, at keys
+            throw new SQLException("Key " + range.column + " of a paged chunk is not exported");
+          }
+        }
+        try (BlockSink sink = new BlockSink(path, namespace + "." + name, datumWriter.getSchema(), paged)) {
+          RawBlock block = new RawBlock();
+          BinaryEncoder encoder = EncoderFactory.get().directBinaryEncoder(block, null);
+          while (rs.next()) {
+            Long key = keyColumn > 0 ? key(rs, keyColumn, range.date) : null;
+            // NULL keys sort first and are only read by a range open at both ends, they stay with this chunk
+            if (key != null && !range.advance(key)) {
+              // The rest of the range belongs to other chunks, don't let the driver read it just to discard it
+              statement.cancel();
+              break;
+            }
+            if (block.rows == 0) {
+              // A page can only start at a block that starts with a key, so NULL keys are never resumed past
+              block.firstKey = key;
+            }
+            datumWriter.write(rs, encoder);
+            block.rows++;
+            if (block.size() >= BLOCK_SIZE) {
+              fetched(block);
+              sink.submit(block);
+              block = new RawBlock();
+              encoder = EncoderFactory.get().directBinaryEncoder(block, encoder);
+              if (Thread.currentThread().isInterrupted()) {
+                // The export was cancelled, don't let the driver read the rest of the results
+                statement.cancel();
+                throw new InterruptedIOException("Export cancelled");
+              }
+            }
+          }
+          if (range != null) {
+            range.finish();
+          }
+          if (block.rows > 0) {
+            fetched(block);
+            sink.submit(block);
+          }
+          return sink.finish();
+        }
+      }
+    } finally {
+      if (range != null) {
+        range.finish();
+      }
+    }
+  }
+
+  private void fetched(RawBlock block) {
+    if (metrics != null) {
+      metrics.fetched(block.rows, block.size());
+    }
+  }
+
+  /**
+   * Finds the key column among the exported columns
+   *
+   * @return column index, or zero if the key is not exported as is
+   */
+  private static int keyColumn(ResultSetMetaData metadata, KeyRange range) throws SQLException {
+    String key = range.column.replace("[", "").replace("]", "").replace("\"", "");
+    for (int i = 1; i <= metadata.getColumnCount(); i++) {
+      if (metadata.getColumnLabel(i).equalsIgnoreCase(key)) {
+        return i;
+      }
+    }
+    return 0;
+  }
+
+  /**
+   * @return key of the current row, dates as epoch milliseconds, or null if it is NULL
+   */
+  private static Long key(ResultSet rs, int keyColumn, boolean date) throws SQLException {
+    if (date) {
+      Timestamp timestamp = rs.getTimestamp(keyColumn);
+      return timestamp == null ? null : timestamp.getTime();
+    }
+    long key = rs.getLong(keyColumn);
+    return rs.wasNull() ? null : key;
+  }
+
+  /**
+   * Length of a long in Avro's zig-zag varint encoding
+   */
+  private static int longSize(long value) {
+    long n = (value << 1) ^ (value >> 63);
+    int size = 1;
+    while ((n & ~0x7FL) != 0) {
+      n >>>= 7;
+      size++;
+    }
+    return size;
+  }
+
+  private static String partPath(String path, int part) {
+    return path.replace("%{PART}", StringUtils.leftPad(String.valueOf(part), 3, "0"));
+  }
+
+  /**
+   * Queries are written for the database library, which escapes literal colons as '::'
+   */
+  private static String unescape(String sql) {
+    return sql.replace("::", ":");
+  }
+
+  /**
+   * Tunes a statement before its query runs
+   */
+  public interface StatementSetup {
+
+    void setup(Statement statement) throws SQLException;
+  }
+
+  /**
+   * Encoded rows waiting to be compressed
+   */
+  private static class RawBlock extends ByteArrayOutputStream {
+
+    long rows;
+    Long firstKey;
+
+    RawBlock() {
+      super(BLOCK_SIZE + BLOCK_SIZE / 8);
+    }
+
+    byte[] buffer() {
+      return buf;
+    }
+  }
+
+  /**
+   * A compressed block, ready to append to a file
+   */
+  private static class Block {
+
+    final long rows;
+    final Long firstKey;
+    final ByteBuffer data;
+
+    Block(long rows, Long firstKey, ByteBuffer data) {
+      this.rows = rows;
+      this.firstKey = firstKey;
+      this.data = data;
+    }
+
+    /**
+     * Bytes this block occupies in the file, including its header and sync marker
+     */
+    long fileBytes() {
+      return longSize(rows) + longSize(data.remaining()) + data.remaining() + SYNC_SIZE;
+    }
+  }
+
+  /**
+   * Receives raw blocks in row order, compresses them, and appends them to the output files in the same order,
+   * starting a new file when the next block would take the current one past the split size.
+   */
+  private class BlockSink implements Closeable {
+
+    private final String path;
+    private final String table;
+    private final Schema schema;
+    private final Deque<Future<Block>> inFlight = new ArrayDeque<>();
+    private final Map<String, Long> files = new LinkedHashMap<>();
+    private final Map<String, Long> pageFiles = new LinkedHashMap<>();
+    private final KeyRange paged;
+
+    private BlockCodec codec;
+    private byte[] header;
+    private FileOutputStream fileOut;
+    private OutputStream out;
+    private BinaryEncoder encoder;
+    private byte[] sync;
+    private String file;
+    private int part;
+    private long pageRows;
+    private long fileRows;
+    private long fileBlocks;
+    private long fileBytes;
+    private boolean finished;
+
+    /**
+     * @param paged key range written in pages, whose completed pages are carried on from, or null
+     */
+    BlockSink(String path, String table, Schema schema, KeyRange paged) {
+      this.path = path;
+      this.table = table;
+      this.schema = schema;
+      this.paged = paged;
+      if (paged != null) {
+        files.putAll(paged.getPages());
+        part = paged.getLastPart();
+      }
+    }
+
+    void submit(RawBlock raw) throws IOException {
+      if (codec == null) {
+        selectCodec(raw.buffer(), raw.size());
+      }
+      Future<Block> future;
+      if (compressionPool == null) {
+        future = CompletableFuture.completedFuture(compress(raw));
+      } else {
+        future = compressionPool.submit(() -> compress(raw));
+      }
+      inFlight.addLast(future);
+      drain(false);
+    }
+
+    /**
+     * Writes every block that is finished, waiting on the oldest block if too many are outstanding
+     */
+    private void drain(boolean all) throws IOException {
+      while (!inFlight.isEmpty()
+          && (all || inFlight.size() > MAX_BLOCKS_IN_FLIGHT || inFlight.peekFirst().isDone())) {
+        append(await(inFlight.removeFirst()));
+      }
+    }
+
+    private void append(Block block) throws IOException {
+      long blockBytes = block.fileBytes();
+      if (out != null && paged != null && pageRows >= paged.getPageRows() && block.firstKey != null) {
+        closeFile();
+        paged.page(pageFiles, part, block.firstKey);
+        pageFiles.clear();
+        pageRows = 0;
+      } else if (out != null && splitBytes > 0 && fileBlocks > 0 && fileBytes + blockBytes > splitBytes) {
+        closeFile();
+      }
+      if (out == null) {
+        open();
+      }
+      encoder.writeLong(block.rows);
+      encoder.writeLong(block.data.remaining());
+      encoder.writeFixed(block.data);
+      encoder.writeFixed(sync);
+      fileRows += block.rows;
+      pageRows += block.rows;
+      fileBlocks++;
+      fileBytes += blockBytes;
+    }
+
+    /**
+     * Flushes all outstanding blocks, closes the current file, and moves all files to their final names
+     *
+     * @return files written, in order, with the number of rows in each
+     */
+    Map<String, Long> finish() throws IOException {
+      drain(true);
+      if (out == null && files.isEmpty()) {
+        // Empty tables still produce a file, so the schema is recorded
+        open();
+      }
+      if (out != null) {
+        closeFile();
+      }
+      for (String name : files.keySet()) {
+        Path temp = Paths.get(name + TEMP_SUFFIX);
+        try {
+          Files.move(temp, Paths.get(name), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException ex) {
+          Files.move(temp, Paths.get(name), StandardCopyOption.REPLACE_EXISTING);
+        }
+      }
+      if (paged != null) {
+        paged.clearPages();
+      }
+      finished = true;
+      return files;
+    }
+
+    private void selectCodec(byte[] sample, int length) throws IOException {
+      codec = codecSelector.select(table, sample, length);
+      header = header();
+    }
+
+    private void open() throws IOException {
+      if (codec == null) {
+        selectCodec(new byte[0], 0);
+      }
+      // After the highest part kept, so a resumed export never writes over a completed page
+      file = partPath(path, ++part);
+      fileOut = new FileOutputStream(file + TEMP_SUFFIX);
+      out = new BufferedOutputStream(fileOut, 64 * 1024);
+      encoder = EncoderFactory.get().directBinaryEncoder(out, encoder);
+      sync = new byte[SYNC_SIZE];
+      ThreadLocalRandom.current().nextBytes(sync);
+      out.write(header);
+      out.write(sync);
+      fileRows = 0;
+      fileBlocks = 0;
+      fileBytes = header.length + SYNC_SIZE;
+    }
+
+    private void closeFile() throws IOException {
+      try {
+        out.flush();
+        fileOut.getFD().sync();
+        out.close();
+      } finally {
+        out = null;
+      }
+      files.put(file, fileRows);
+      pageFiles.put(file, fileRows);
+    }
+
+    private Block compress(RawBlock raw) throws IOException {
+      return new Block(raw.rows, raw.firstKey, codec.compress(raw.buffer(), raw.size()));
+    }
+
+    private Block await(Future<Block> future) throws IOException {
+      try {
+        return future.get();
+      } catch (InterruptedException ex) {
+        Thread.currentThread().interrupt();
+        throw new InterruptedIOException("Interrupted waiting for block compression");
+      } catch (ExecutionException ex) {
+        if (ex.getCause() instanceof IOException) {
+          throw (IOException) ex.getCause();
+        }
+        throw new IOException("Block compression failed", ex.getCause());
+      }
+    }
+
+    /**
+     * Header of the container file, everything up to the sync marker
+     */
+    private byte[] header() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      BinaryEncoder headerEncoder = EncoderFactory.get().directBinaryEncoder(bytes, null);
+      headerEncoder.writeFixed(MAGIC);
+      headerEncoder.writeMapStart();
+      headerEncoder.setItemCount(2);
+      headerEncoder.startItem();
+      headerEncoder.writeString("avro.schema");
+      headerEncoder.writeBytes(schema.toString().getBytes(StandardCharsets.UTF_8));
+      headerEncoder.startItem();
+      headerEncoder.writeString("avro.codec");
+      headerEncoder.writeBytes(codec.getName().getBytes(StandardCharsets.UTF_8));
+      headerEncoder.writeMapEnd();
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Abandons outstanding blocks and removes the temporary files when the export fails part way, except completed
+     * pages, which the next attempt carries on from
+     */
+    @Override
+    public void close() throws IOException {
+      if (finished) {
+        return;
+      }
+      for (Future<Block> future : inFlight) {
+        future.cancel(false);
+      }
+      inFlight.clear();
+      Map<String, Long> pages = paged == null ? Collections.emptyMap() : paged.getPages();
+      try {
+        if (out != null) {
+          files.put(file, fileRows);
+          out.close();
+        }
+      } finally {
+        for (String name : files.keySet()) {
+          if (!pages.containsKey(name)) {
+            Files.deleteIfExists(Paths.get(name + TEMP_SUFFIX));
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Removes the pages kept for a range whose export was given up on
+   */
+  public static void discardPages(KeyRange range) throws IOException {
+    if (range == null) {
+      return;
+    }
+    for (String name : range.getPages().keySet()) {
+      Files.deleteIfExists(Paths.get(name + TEMP_SUFFIX));
+    }
+    range.clearPages();
+  }
+
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.functions;
+
+import com.github.luben.zstd.Zstd;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Locale;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import org.tukaani.xz.LZMA2Options;
+import org.tukaani.xz.XZOutputStream;
+import org.xerial.snappy.Snappy;
+
+/**
+ * Compresses Avro data blocks. Output is identical in format to the Avro codecs of the same name, so files can be
+ * read by any Avro implementation. Unlike Avro's own codecs, instances are stateless and safe to share between
+ * compression threads.
+ */
+public abstract class BlockCodec {
+
+  /**
+   * Avro name of the codec, written to the avro.codec file metadata
+   *
+   * @return codec name
+   */
+  public abstract String getName();
+
+  /**
+   * Compresses a block of encoded rows
+   *
+   * @param data buffer holding the block
+   * @param length number of bytes in the block
+   * @return compressed block
+   */
+  public abstract ByteBuffer compress(byte[] data, int length) throws IOException;
+
+  /**
+   * Parses a codec name as given on the command line. Deflate, zstandard and xz accept a level suffix, for example
+   * zstd-9 or deflate-1.
+   *
+   * @param codec codec name (null, snappy, deflate[-1..9], zstandard|zstd[-1..22], xz[-0..9])
+   * @return codec
+   */
+  public static BlockCodec fromString(String codec) {
+    String name = codec.toLowerCase(Locale.ROOT);
+    Integer level = null;
+    int dash = name.lastIndexOf('-');
+    if (dash > 0) {
+      try {
+        level = Integer.valueOf(name.substring(dash + 1));
+      } catch (NumberFormatException ex) {
+        throw new IllegalArgumentException("Invalid level for Avro codec " + codec);
+      }
+      name = name.substring(0, dash);
+    }
+    switch (name) {
+      case "null":
+        requireNoLevel(codec, level);
+        return new NullCodec();
+      case "snappy":
+        requireNoLevel(codec, level);
+        return new SnappyCodec();
+      case "deflate":
+        return new DeflateCodec(level(codec, level, Deflater.DEFAULT_COMPRESSION, 1, 9));
+      case "zstd":
+      case "zstandard":
+        return new ZstandardCodec(level(codec, level, ZstandardCodec.DEFAULT_LEVEL, 1, Zstd.maxCompressionLevel()));
+      case "xz":
+        return new XZCodec(level(codec, level, LZMA2Options.PRESET_DEFAULT, 0, 9));
+      default:
+        throw new IllegalArgumentException("Unsupported Avro codec " + codec);
+    }
+  }
+
+  private static void requireNoLevel(String codec, Integer level) {
+    if (level != null) {
+      throw new IllegalArgumentException("Avro codec " + codec + " does not take a level");
+    }
+  }
+
+  private static int level(String codec, Integer level, int defaultLevel, int min, int max) {
+    if (level == null) {
+      return defaultLevel;
+    }
+    if (level < min || level > max) {
+      throw new IllegalArgumentException(
+          "Level for Avro codec " + codec + " must be between " + min + " and " + max);
+    }
+    return level;
+  }
+
+  /**
+   * Codec name with its level, if it has one, in the form accepted by {@link #fromString(String)}
+   *
+   * @return codec description
+   */
+  @Override
+  public String toString() {
+    return getName();
+  }
+
+  static class NullCodec extends BlockCodec {
+
+    @Override
+    public String getName() {
+      return "null";
+    }
+
+    @Override
+    public ByteBuffer compress(byte[] data, int length) {
+      return ByteBuffer.wrap(data, 0, length);
+    }
+  }
+
+  /**
+   * Snappy, followed by the big-endian CRC32 of the uncompressed data
+   */
+  static class SnappyCodec extends BlockCodec {
+
+    @Override
+    public String getName() {
+      return "snappy";
+    }
+
+    @Override
+    public ByteBuffer compress(byte[] data, int length) throws IOException {
+      byte[] out = new byte[Snappy.maxCompressedLength(length) + 4];
+      int size = Snappy.compress(data, 0, length, out, 0);
+      CRC32 crc = new CRC32();
+      crc.update(data, 0, length);
+      ByteBuffer buffer = ByteBuffer.wrap(out, 0, size + 4);
+      buffer.putInt(size, (int) crc.getValue());
+      return buffer;
+    }
+  }
+
+  /**
+   * Raw deflate, without zlib headers
+   */
+  static class DeflateCodec extends BlockCodec {
+
+    private final int level;
+
+    DeflateCodec(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public String getName() {
+      return "deflate";
+    }
+
+    @Override
+    public String toString() {
+      return level == Deflater.DEFAULT_COMPRESSION ? getName() : getName() + "-" + level;
+    }
+
+    @Override
+    public ByteBuffer compress(byte[] data, int length) throws IOException {
+      Deflater deflater = new Deflater(level, true);
+      try {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(length / 2 + 64);
+        try (DeflaterOutputStream stream = new DeflaterOutputStream(out, deflater)) {
+          stream.write(data, 0, length);
+        }
+        return ByteBuffer.wrap(out.toByteArray());
+      } finally {
+        deflater.end();
+      }
+    }
+  }
+
+  /**
+   * A single zstd frame per block
+   */
+  static class ZstandardCodec extends BlockCodec {
+
+    static final int DEFAULT_LEVEL = 3;
+
+    private final int level;
+
+    ZstandardCodec(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public String getName() {
+      return "zstandard";
+    }
+
+    @Override
+    public String toString() {
+      return getName() + "-" + level;
+    }
+
+    @Override
+    public ByteBuffer compress(byte[] data, int length) throws IOException {
+      byte[] out = new byte[(int) Zstd.compressBound(length)];
+      long size = Zstd.compressByteArray(out, 0, out.length, data, 0, length, level);
+      if (Zstd.isError(size)) {
+        throw new IOException("Zstandard compression failed: " + Zstd.getErrorName(size));
+      }
+      return ByteBuffer.wrap(out, 0, (int) size);
+    }
+  }
+
+  /**
+   * A complete .xz stream per block
+   */
+  static class XZCodec extends BlockCodec {
+
+    private final int level;
+
+    XZCodec(int level) {
+      this.level = level;
+    }
+
+    @Override
+    public String getName() {
+      return "xz";
+    }
+
+    @Override
+    public String toString() {
+      return getName() + "-" + level;
+    }
+
+    @Override
+    public ByteBuffer compress(byte[] data, int length) throws IOException {
+      ByteArrayOutputStream out = new ByteArrayOutputStream(length / 4 + 64);
+      try (XZOutputStream stream = new XZOutputStream(out, new LZMA2Options(level))) {
+        stream.write(data, 0, length);
+      }
+      return ByteBuffer.wrap(out.toByteArray());
+    }
+  }
+
+}
@@ -0,0 +1,141 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.functions;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Decides which codec each table is written with. A fixed codec applies to every table, while "auto" tries the
+ * candidate codecs on the first block of rows written for a table and keeps the winner for the rest of the table.
+ */
+public abstract class CodecSelector {
+
+  public static final String AUTO = "auto";
+
+  /**
+   * Chooses the codec for a table
+   *
+   * @param table schema qualified table name
+   * @param sample buffer holding the first block of encoded rows
+   * @param length number of bytes in the sample, zero when the table is empty
+   * @return codec to write the table with
+   */
+  public abstract BlockCodec select(String table, byte[] sample, int length) throws IOException;
+
+  /**
+   * Parses the codec given on the command line
+   *
+   * @param codec "auto", or a codec accepted by {@link BlockCodec#fromString(String)}
+   * @return selector
+   */
+  public static CodecSelector fromString(String codec) {
+    if (AUTO.equalsIgnoreCase(codec)) {
+      return new Auto();
+    }
+    BlockCodec fixed = BlockCodec.fromString(codec);
+    return new CodecSelector() {
+      @Override
+      public BlockCodec select(String table, byte[] sample, int length) {
+        return fixed;
+      }
+    };
+  }
+
+  /**
+   * Picks the codec with the best compression ratio among those compressing at least a quarter as fast as the
+   * fastest candidate, so a codec only wins on ratio if it stays close to snappy speed. Data that barely compresses
+   * is written uncompressed.
+   */
+  static class Auto extends CodecSelector {
+
+    private static final Logger LOGGER = LoggerFactory.getLogger(CodecSelector.class);
+
+    /**
+     * Minimum throughput, relative to the fastest candidate, for a codec to be considered
+     */
+    private static final double SPEED_FLOOR = 0.25;
+
+    /**
+     * Below this ratio compression is not worth the CPU
+     */
+    private static final double MIN_RATIO = 1.1;
+
+    private static final BlockCodec FALLBACK = BlockCodec.fromString("snappy");
+
+    private final List<BlockCodec> candidates = Arrays.asList(
+        BlockCodec.fromString("snappy"),
+        BlockCodec.fromString("zstandard-1"),
+        BlockCodec.fromString("zstandard-3"),
+        BlockCodec.fromString("zstandard-9"),
+        BlockCodec.fromString("deflate"));
+
+    private final Map<String, BlockCodec> tableCodecs = new ConcurrentHashMap<>();
+
+    @Override
+    public BlockCodec select(String table, byte[] sample, int length) throws IOException {
+      BlockCodec codec = tableCodecs.get(table);
+      if (codec != null) {
+        return codec;
+      }
+      if (length == 0) {
+        // Nothing to sample, and nothing much to compress
+        return FALLBACK;
+      }
+
+      double[] ratios = new double[candidates.size()];
+      double[] speeds = new double[candidates.size()];
+      double fastest = 0;
+      for (int i = 0; i < candidates.size(); i++) {
+        // Best of two runs, so one-time native library and JIT costs don't count against a codec
+        long elapsed = Long.MAX_VALUE;
+        int size = 0;
+        for (int run = 0; run < 2; run++) {
+          long start = System.nanoTime();
+          size = candidates.get(i).compress(sample, length).remaining();
+          elapsed = Math.min(elapsed, Math.max(1, System.nanoTime() - start));
+        }
+        ratios[i] = (double) length / size;
+        speeds[i] = length * 1000.0 / elapsed;
+        fastest = Math.max(fastest, speeds[i]);
+      }
+
+      int best = -1;
+      for (int i = 0; i < candidates.size(); i++) {
+        if (speeds[i] >= fastest * SPEED_FLOOR && (best < 0 || ratios[i] > ratios[best])) {
+          best = i;
+        }
+      }
+      codec = ratios[best] < MIN_RATIO ? BlockCodec.fromString("null") : candidates.get(best);
+      BlockCodec existing = tableCodecs.putIfAbsent(table, codec);
+      if (existing != null) {
+        return existing;
+      }
+      LOGGER.info("Selected codec {} for {} (ratio {}, {} MB/s)", codec, table,
+          String.format(Locale.ROOT, "%.2f", ratios[best]), String.format(Locale.ROOT, "%.0f", speeds[best]));
+      return codec;
+    }
+  }
+
+}
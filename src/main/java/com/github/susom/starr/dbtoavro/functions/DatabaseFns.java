@@ -19,18 +19,32 @@ package com.github.susom.starr.dbtoavro.functions;
 
 import com.github.susom.database.Config;
 import com.github.susom.database.DatabaseException;
+import com.github.susom.starr.dbtoavro.entity.Checkpoint;
+import com.github.susom.starr.dbtoavro.entity.Column;
 import com.github.susom.starr.dbtoavro.entity.Database;
 import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.entity.Query;
+import com.github.susom.starr.dbtoavro.entity.SchemaCatalog;
 import com.github.susom.starr.dbtoavro.entity.SplitTableStrategy;
+import com.github.susom.starr.dbtoavro.entity.Table;
+import com.github.susom.starr.dbtoavro.util.CatalogSnapshot;
 import com.github.susom.database.DatabaseProvider;
 import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.Single;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Types;
 import java.util.List;
+import java.util.Map;
 import java.util.Scanner;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -66,6 +80,9 @@ public abstract class DatabaseFns {
   private static final Logger LOGGER = LoggerFactory.getLogger(DatabaseFns.class);
   protected final Config config;
   protected final DatabaseProvider.Builder dbb;
+  private final Map<String, Single<SchemaCatalog>> catalogs = new ConcurrentHashMap<>();
+  private CatalogSnapshot snapshot;
+  private String planKey;
 
   public DatabaseFns(Config config, DatabaseProvider.Builder dbb) {
     this.config = config;
@@ -129,16 +146,219 @@ public abstract class DatabaseFns {
   public abstract Observable<String> getTables(String schema, Job job);
 
   /**
-   * Prepare queries for export for a given table
+   * Get the size on disk of each table in a schema, used to schedule the largest tables first
+   *
+   * @param schema schema to query
+   * @param job job
+   * @return single map of table name to bytes
+   */
+  public abstract Single<Map<String, Long>> getTableSizes(String schema, Job job);
+
+  /**
+   * Prepare queries for export for a given table. Queries planned by a previous run are reused if the schema and the
+   * job options that shape the plan are unchanged.
+   *
+   * @param schema schema to query
+   * @param tableName table name
+   * @param job job
+   * @return observable of queries
+   */
+  public Observable<Query> getQueries(String schema, String tableName, Job job) {
+    return getCatalog(schema, job)
+        .flatMapObservable(
+            schemaCatalog -> {
+              CatalogSnapshot snapshot = getSnapshot(job);
+              if (snapshot == null) {
+                return planQueries(schema, tableName, job);
+              }
+              Table table =
+                  new Table(
+                      job.catalog,
+                      schema,
+                      tableName,
+                      schemaCatalog.getColumns(tableName),
+                      schemaCatalog.getRowCount(tableName),
+                      getSplitTableStrategies(job, tableName));
+              table.setAvgRowLength(schemaCatalog.getRowLength(tableName));
+              String planKey = getPlanKey(job);
+              List<Query> planned = snapshot.getQueries(table, schemaCatalog.getFingerprint(), planKey);
+              if (planned != null) {
+                LOGGER.info("Using {} queries planned by a previous run for {}.{}", planned.size(), schema,
+                    tableName);
+                return Observable.fromIterable(planned);
+              }
+              return planQueries(schema, tableName, job)
+                  .toList()
+                  .doOnSuccess(
+                      queries -> {
+                        // Nothing is kept for tables that produced no queries, which may be due to an error
+                        if (!queries.isEmpty()) {
+                          snapshot.putQueries(queries.get(0).table, schemaCatalog.getFingerprint(), planKey,
+                              queries);
+                        }
+                      })
+                  .flattenAsObservable(queries -> queries);
+            });
+  }
+
+  /**
+   * Plans the queries to export a table, typically splitting it into chunks
    *
-   * @param catalog catalog to query
    * @param schema schema to query
    * @param tableName table name
-   * @param columnExclusions column exclusions
    * @param job job
    * @return observable of queries
    */
-  public abstract Observable<Query> getQueries(String schema, String tableName, Job job);
+  protected abstract Observable<Query> planQueries(String schema, String tableName, Job job);
+
+  /**
+   * Cheap fingerprint of a schema that changes when its tables do, so catalogs and plans from a previous run are
+   * only reused while it matches
+   *
+   * @param database database connection
+   * @param schema schema to fingerprint
+   * @param job job with the catalog
+   * @return fingerprint
+   */
+  protected abstract String getFingerprint(com.github.susom.database.Database database, String schema, Job job)
+      throws SQLException;
+
+  /**
+   * Split strategies given for a table, with or without its schema
+   */
+  protected List<SplitTableStrategy> getSplitTableStrategies(Job job, String tableName) {
+    return job.splitTableStrategies.stream()
+        .filter(
+            x ->
+                x.getTableName().contains(".")
+                    ? x.getTableName().split("\\.")[1].equalsIgnoreCase(tableName)
+                    : x.getTableName().equalsIgnoreCase(tableName))
+        .collect(Collectors.toList());
+  }
+
+  /**
+   * Job options that shape query plans. Taken once, before planning fills in the ranges of the split strategies.
+   */
+  protected synchronized String getPlanKey(Job job) {
+    if (planKey == null) {
+      planKey =
+          Checkpoint.hash(
+              String.join(
+                  "|",
+                  String.valueOf(job.splitTableStrategies),
+                  String.valueOf(job.incrementFactor),
+                  String.valueOf(job.tablesSplit),
+                  String.valueOf(job.unionizeQuery),
+                  String.valueOf(job.columnExclusions),
+                  String.valueOf(job.stringDatetime),
+                  String.valueOf(job.stringDatetimeSuffix),
+                  config.getString("straggler.split.factor", "0"),
+                  config.getString("threads.max", config.getString("threads", "1")),
+                  config.getString("chunk.page.rows", "0"),
+                  config.getString("chunk.target.mb", "512"),
+                  config.getString("rowid.planner", "table"),
+                  config.getString("partition.chunks", "false"),
+                  config.getString("partition.split.mb", "4096")));
+    }
+    return planKey;
+  }
+
+  /**
+   * Snapshot of catalogs and plans next to the job log, or null if disabled
+   */
+  private synchronized CatalogSnapshot getSnapshot(Job job) throws IOException {
+    if (snapshot == null && config.getBooleanOrTrue("catalog.snapshot")) {
+      Path dir =
+          job.logfile != null && Paths.get(job.logfile).toAbsolutePath().getParent() != null
+              ? Paths.get(job.logfile).toAbsolutePath().getParent()
+              : Paths.get(job.destination);
+      snapshot =
+          new CatalogSnapshot(
+              dir.resolve(
+                  "catalog-snapshot-"
+                      + (job.catalog != null ? job.catalog : String.valueOf(job.flavor))
+                      + ".jsonl"));
+    }
+    return snapshot;
+  }
+
+  /**
+   * Columns, primary keys and row counts of every table in a schema. These are read once per schema with a few bulk
+   * queries, rather than with several metadata round trips for every table, and shared by all tables of the schema.
+   *
+   * @param schema schema to read
+   * @param job job with the catalog and column exclusions
+   * @return Single of the schema catalog
+   */
+  protected Single<SchemaCatalog> getCatalog(String schema, Job job) {
+    return catalogs.computeIfAbsent(schema, s ->
+        Single.fromCallable(
+            () ->
+                dbb.transactReturning(
+                    db -> {
+                      long start = System.nanoTime();
+                      String fingerprint = getFingerprint(db.get(), s, job);
+                      CatalogSnapshot snapshot = getSnapshot(job);
+                      SchemaCatalog catalog = snapshot == null ? null : snapshot.getCatalog(s, fingerprint);
+                      if (catalog != null) {
+                        LOGGER.info("Using catalog of schema {} from a previous run, {} tables", s,
+                            catalog.getTableCount());
+                      } else {
+                        catalog = readCatalog(db.get(), s, job);
+                        LOGGER.info("Read catalog of schema {}, {} tables in {}ms", s, catalog.getTableCount(),
+                            (System.nanoTime() - start) / 1000000);
+                        if (snapshot != null) {
+                          snapshot.putCatalog(s, fingerprint, catalog);
+                        }
+                      }
+                      catalog.setFingerprint(fingerprint);
+                      return catalog;
+                    }))
+            .doOnError(error -> catalogs.remove(s))
+            .cache());
+  }
+
+  /**
+   * Reads the catalog of a schema in bulk
+   *
+   * @param database database connection
+   * @param schema schema to read
+   * @param job job with the catalog and column exclusions
+   * @return columns, primary keys and row counts of every table
+   */
+  protected abstract SchemaCatalog readCatalog(com.github.susom.database.Database database, String schema, Job job)
+      throws SQLException;
+
+  /**
+   * Reads the columns of every table in a schema in a single metadata call
+   */
+  protected SchemaCatalog readColumns(DatabaseMetaData metadata, String catalog, String schema,
+      List<String> columnExclusions) throws SQLException {
+    SchemaCatalog schemaCatalog = new SchemaCatalog();
+    try (ResultSet columns = metadata.getColumns(catalog, schema, "%", "%")) {
+      while (columns.next()) {
+        String table = columns.getString(3);
+        String name = columns.getString(4);
+        int jdbcType = columns.getInt(5);
+        String vendorType = columns.getString(6);
+        boolean supported = isSupported(jdbcType);
+        boolean exclude =
+            columnExclusions.stream()
+                .anyMatch(re -> (schema + "." + table + "." + name).matches("(?i:" + re + ")"));
+        schemaCatalog.addColumn(table, new Column(name, jdbcType, vendorType, supported, exclude));
+        if (!supported) {
+          LOGGER.debug(
+              "[{}].[{}].[{}] has unsupported type {} ({})",
+              schema,
+              table,
+              name,
+              vendorType,
+              jdbcType);
+        }
+      }
+    }
+    return schemaCatalog;
+  }
 
   /**
    * Introspects a database table, required for selecting the appropriate splitting and exporting
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.functions;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Running totals of what all writers have fetched from the database, shared by every {@link AvroWriter} of a job.
+ * Counters only ever increase, readers take the difference between two snapshots.
+ */
+public class ExportMetrics {
+
+  private final LongAdder rows = new LongAdder();
+  private final LongAdder bytes = new LongAdder();
+  private final LongAdder queries = new LongAdder();
+  private final LongAdder firstRowNanos = new LongAdder();
+
+  /**
+   * Records a block of rows fetched and encoded
+   *
+   * @param rows rows in the block
+   * @param bytes encoded, uncompressed size of the block
+   */
+  public void fetched(long rows, long bytes) {
+    this.rows.add(rows);
+    this.bytes.add(bytes);
+  }
+
+  /**
+   * Records how long a query took to return its first row, or to return nothing
+   */
+  public void firstRow(long nanos) {
+    queries.increment();
+    firstRowNanos.add(nanos);
+  }
+
+  public Snapshot snapshot() {
+    return new Snapshot(System.nanoTime(), rows.sum(), bytes.sum(), queries.sum(), firstRowNanos.sum());
+  }
+
+  /**
+   * Totals at a point in time
+   */
+  public static class Snapshot {
+
+    public final long nanoTime;
+    public final long rows;
+    public final long bytes;
+    public final long queries;
+    public final long firstRowNanos;
+
+    Snapshot(long nanoTime, long rows, long bytes, long queries, long firstRowNanos) {
+      this.nanoTime = nanoTime;
+      this.rows = rows;
+      this.bytes = bytes;
+      this.queries = queries;
+      this.firstRowNanos = firstRowNanos;
+    }
+  }
+
+}
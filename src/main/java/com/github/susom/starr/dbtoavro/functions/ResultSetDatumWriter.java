@@ -0,0 +1,265 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.functions;
+
+import java.io.IOException;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import org.apache.avro.LogicalTypes;
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaBuilder.FieldAssembler;
+import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.Encoder;
+
+/**
+ * Encodes the current row of a JDBC result set directly as Avro binary. A specialized writer is resolved for each
+ * column up front from its JDBC type, precision and scale, so encoding a row is a straight walk over the column
+ * writers with no intermediate GenericRecord and no per-value type switch.
+ *
+ * <p>Every field is a ["null", type] union, matching the nullability of database columns.
+ */
+public class ResultSetDatumWriter implements DatumWriter<ResultSet> {
+
+  /**
+   * Reads one column of the current row and writes it, including the union branch, to the encoder
+   */
+  @FunctionalInterface
+  interface ColumnWriter {
+
+    void write(ResultSet rs, Encoder out) throws SQLException, IOException;
+  }
+
+  private final Schema schema;
+  private final ColumnWriter[] writers;
+
+  private ResultSetDatumWriter(Schema schema, ColumnWriter[] writers) {
+    this.schema = schema;
+    this.writers = writers;
+  }
+
+  /**
+   * Resolves the Avro schema and column writers for a result set
+   *
+   * @param metadata result set metadata of the query being exported
+   * @param namespace record namespace (the database schema)
+   * @param name record name (the table)
+   * @return datum writer for rows of this result set
+   */
+  public static ResultSetDatumWriter forResultSet(ResultSetMetaData metadata, String namespace, String name)
+      throws SQLException {
+    int columnCount = metadata.getColumnCount();
+    ColumnWriter[] writers = new ColumnWriter[columnCount];
+    FieldAssembler<Schema> fields = SchemaBuilder.record(avroName(name)).namespace(avroName(namespace)).fields();
+    Set<String> fieldNames = new HashSet<>();
+
+    for (int i = 1; i <= columnCount; i++) {
+      final int index = i;
+      String fieldName = avroName(metadata.getColumnLabel(i));
+      while (!fieldNames.add(fieldName)) {
+        fieldName = fieldName + "_" + i;
+      }
+
+      Schema type;
+      switch (metadata.getColumnType(i)) {
+        case Types.BIT:
+        case Types.BOOLEAN:
+          type = Schema.create(Schema.Type.BOOLEAN);
+          writers[i - 1] = (rs, out) -> {
+            boolean value = rs.getBoolean(index);
+            if (rs.wasNull()) {
+              writeNull(out);
+            } else {
+              out.writeIndex(1);
+              out.writeBoolean(value);
+            }
+          };
+          break;
+        case Types.TINYINT:
+        case Types.SMALLINT:
+        case Types.INTEGER:
+          type = Schema.create(Schema.Type.INT);
+          writers[i - 1] = (rs, out) -> {
+            int value = rs.getInt(index);
+            if (rs.wasNull()) {
+              writeNull(out);
+            } else {
+              out.writeIndex(1);
+              out.writeInt(value);
+            }
+          };
+          break;
+        case Types.BIGINT:
+          type = Schema.create(Schema.Type.LONG);
+          writers[i - 1] = longWriter(index);
+          break;
+        case Types.NUMERIC:
+        case Types.DECIMAL:
+          // Whole numbers that fit are kept exact, everything else (including Oracle NUMBER
+          // without a declared precision) is written as a double
+          if (metadata.getScale(i) == 0 && metadata.getPrecision(i) > 0 && metadata.getPrecision(i) <= 18) {
+            type = Schema.create(Schema.Type.LONG);
+            writers[i - 1] = longWriter(index);
+          } else {
+            type = Schema.create(Schema.Type.DOUBLE);
+            writers[i - 1] = doubleWriter(index);
+          }
+          break;
+        case Types.REAL:
+          type = Schema.create(Schema.Type.FLOAT);
+          writers[i - 1] = (rs, out) -> {
+            float value = rs.getFloat(index);
+            if (rs.wasNull()) {
+              writeNull(out);
+            } else {
+              out.writeIndex(1);
+              out.writeFloat(value);
+            }
+          };
+          break;
+        case Types.FLOAT:
+        case Types.DOUBLE:
+          type = Schema.create(Schema.Type.DOUBLE);
+          writers[i - 1] = doubleWriter(index);
+          break;
+        case Types.DATE:
+        case Types.TIMESTAMP:
+          type = LogicalTypes.timestampMillis().addToSchema(Schema.create(Schema.Type.LONG));
+          writers[i - 1] = (rs, out) -> {
+            Timestamp value = rs.getTimestamp(index);
+            if (value == null) {
+              writeNull(out);
+            } else {
+              out.writeIndex(1);
+              out.writeLong(value.getTime());
+            }
+          };
+          break;
+        case Types.BINARY:
+        case Types.VARBINARY:
+        case Types.LONGVARBINARY:
+        case Types.BLOB:
+          type = Schema.create(Schema.Type.BYTES);
+          writers[i - 1] = (rs, out) -> {
+            byte[] value = rs.getBytes(index);
+            if (value == null) {
+              writeNull(out);
+            } else {
+              out.writeIndex(1);
+              out.writeBytes(value);
+            }
+          };
+          break;
+        default:
+          // Character types, LOBs, and anything else the driver can render as a string
+          type = Schema.create(Schema.Type.STRING);
+          writers[i - 1] = (rs, out) -> {
+            String value = rs.getString(index);
+            if (value == null) {
+              writeNull(out);
+            } else {
+              out.writeIndex(1);
+              out.writeString(value);
+            }
+          };
+          break;
+      }
+      fields.name(fieldName).type(Schema.createUnion(Schema.create(Schema.Type.NULL), type)).withDefault(null);
+    }
+
+    return new ResultSetDatumWriter(fields.endRecord(), writers);
+  }
+
+  public Schema getSchema() {
+    return schema;
+  }
+
+  /**
+   * Schema is fixed by the result set, see {@link #forResultSet(ResultSetMetaData, String, String)}
+   */
+  @Override
+  public void setSchema(Schema schema) {
+    if (!this.schema.equals(schema)) {
+      throw new IllegalArgumentException("Schema does not match result set");
+    }
+  }
+
+  /**
+   * Encodes the row the result set is currently positioned on
+   */
+  @Override
+  public void write(ResultSet rs, Encoder out) throws IOException {
+    try {
+      for (ColumnWriter writer : writers) {
+        writer.write(rs, out);
+      }
+    } catch (SQLException ex) {
+      throw new IOException(ex);
+    }
+  }
+
+  private static ColumnWriter longWriter(int index) {
+    return (rs, out) -> {
+      long value = rs.getLong(index);
+      if (rs.wasNull()) {
+        writeNull(out);
+      } else {
+        out.writeIndex(1);
+        out.writeLong(value);
+      }
+    };
+  }
+
+  private static ColumnWriter doubleWriter(int index) {
+    return (rs, out) -> {
+      double value = rs.getDouble(index);
+      if (rs.wasNull()) {
+        writeNull(out);
+      } else {
+        out.writeIndex(1);
+        out.writeDouble(value);
+      }
+    };
+  }
+
+  private static void writeNull(Encoder out) throws IOException {
+    out.writeIndex(0);
+    out.writeNull();
+  }
+
+  /**
+   * Normalizes a database identifier into a legal Avro name, much like table names are tidied
+   */
+  private static String avroName(String name) {
+    String tidy = name.replaceAll("[^a-zA-Z0-9]", " ")
+        .trim()
+        .replaceAll("\\s", "_")
+        .toLowerCase(Locale.ROOT);
+    if (tidy.isEmpty() || Character.isDigit(tidy.charAt(0))) {
+      tidy = "_" + tidy;
+    }
+    return tidy;
+  }
+
+}
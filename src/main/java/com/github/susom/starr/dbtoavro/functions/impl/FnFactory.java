@@ -6,19 +6,22 @@ import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.functions.AvroFns;
 import com.github.susom.starr.dbtoavro.functions.DatabaseFns;
 import com.github.susom.starr.dbtoavro.functions.DockerFns;
+import com.github.susom.starr.dbtoavro.functions.ExportMetrics;
 import com.github.susom.database.DatabaseProvider;
+import java.util.concurrent.ExecutorService;
 
 /**
  * Factory methods for retrieving implementations for each database vendor
  */
 public class FnFactory {
 
-  public static AvroFns getAvroFns(Flavor flav, Job job, DatabaseProvider.Builder dbb) {
+  public static AvroFns getAvroFns(Flavor flav, Job job, DatabaseProvider.Builder dbb,
+      ExecutorService compressionPool, ExportMetrics metrics) {
     switch (flav) {
       case sqlserver:
-        return new SqlServerAvroFns(job, dbb);
+        return new SqlServerAvroFns(job, dbb, compressionPool, metrics);
       case oracle:
-        return new OracleAvroFns(job, dbb);
+        return new OracleAvroFns(job, dbb, compressionPool, metrics);
       default:
         throw new RuntimeException("Flavor " + flav + " is not supported");
     }
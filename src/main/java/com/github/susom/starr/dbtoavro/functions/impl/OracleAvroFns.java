@@ -1,44 +1,68 @@
 package com.github.susom.starr.dbtoavro.functions.impl;
 
-import com.github.susom.dbgoodies.etl.Etl;
 import com.github.susom.starr.dbtoavro.entity.AvroFile;
+import com.github.susom.starr.dbtoavro.entity.Column;
 import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.entity.Query;
 import com.github.susom.starr.dbtoavro.entity.Statistics;
 import com.github.susom.starr.dbtoavro.entity.Table;
 import com.github.susom.starr.dbtoavro.functions.AvroFns;
+import com.github.susom.starr.dbtoavro.functions.AvroWriter;
+import com.github.susom.starr.dbtoavro.functions.CodecSelector;
+import com.github.susom.starr.dbtoavro.functions.ExportMetrics;
 import com.github.susom.database.DatabaseProvider;
 import io.reactivex.Single;
-import org.apache.avro.file.CodecFactory;
+import oracle.jdbc.OracleStatement;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.nio.file.Paths;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
 import java.time.Duration;
 import java.time.LocalDateTime;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 public class OracleAvroFns implements AvroFns {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OracleAvroFns.class);
 
+  /**
+   * Bounds of the fetch size worked out from the row length
+   */
+  private static final int MIN_FETCH_ROWS = 100;
+  private static final int MAX_FETCH_ROWS = 50000;
+
   private final DatabaseProvider.Builder dbb;
   private final int fetchSize;
-  private CodecFactory codec;
+  private final long fetchBytes;
+  private final int lobPrefetchBytes;
+  private final boolean stringDatetime;
+  private final ExecutorService compressionPool;
+  private final ExportMetrics metrics;
+  private CodecSelector codecSelector;
   private boolean tidyTables;
   private String filenamePattern;
   private String destination;
   private int avroSize;
 
-  public OracleAvroFns(Job job, DatabaseProvider.Builder dbb) {
+  public OracleAvroFns(Job job, DatabaseProvider.Builder dbb, ExecutorService compressionPool,
+      ExportMetrics metrics) {
     this.dbb = dbb;
+    this.compressionPool = compressionPool;
+    this.metrics = metrics;
     this.fetchSize = job.fetchRows;
-    this.codec = CodecFactory.fromString(job.codec);
+    this.fetchBytes = job.fetchBytes;
+    this.lobPrefetchBytes = job.lobPrefetchBytes;
+    this.stringDatetime = job.stringDatetime;
+    this.codecSelector = CodecSelector.fromString(job.codec);
     this.tidyTables = job.tidyTables;
     this.avroSize = job.avroSize;
     this.filenamePattern = job.filenamePattern;
@@ -87,23 +111,28 @@ public class OracleAvroFns implements AvroFns {
                           table.getDbRowCount(),
                           queryObject.getQuery()));
 
-                  Etl.SaveAsAvro avro =
-                      Etl.saveQuery(db.get().toSelect(query))
-                          .asAvro(
+                  LOGGER.info(
+                      "Writing {} for queryId {}, query is {}",
+                      path,
+                      queryObject.getId(),
+                      queryObject.getQuery());
+                  Map<String, Long> output =
+                      new AvroWriter(codecSelector, compressionPool, fetchRows(table), avroSize, metrics)
+                          .withStatementSetup(statement -> setup(statement, queryObject))
+                          .write(
+                              db.get().underlyingConnection(),
+                              query,
                               Paths.get(destination, path).toString(),
                               queryObject.getSchema(),
-                              queryObject.getName())
-                          .withCodec(codec)
-                          .fetchSize(fetchSize);
-                  return processSql(startLocalTime, startTime, path, avro, queryObject);
+                              queryObject.getName());
+                  return processSql(startLocalTime, startTime, output, queryObject);
                 }));
   }
 
   private AvroFile processSql(
       LocalDateTime startLocalTime,
       long startTime,
-      String path,
-      Etl.SaveAsAvro avro,
+      Map<String, Long> output,
       Query queryObject) {
 
     String query = queryObject.getQuery();
@@ -112,18 +141,10 @@ public class OracleAvroFns implements AvroFns {
     List<String> files = new ArrayList<>();
     long exportRowCount = 0;
     long totalBytes = 0;
-    LOGGER.info("Writing {} for queryId {}, query is {}", path, queryId, query);
-    if (avroSize > 0) {
-      Map<String, Long> output = avro.start(avroSize);
-      for (Map.Entry<String, Long> entry : output.entrySet()) {
-        files.add(entry.getKey());
-        exportRowCount += entry.getValue();
-        totalBytes += new File(entry.getKey()).length();
-      }
-    } else {
-      exportRowCount = avro.start();
-      totalBytes = new File(path).length();
-      files.add(path);
+    for (Map.Entry<String, Long> entry : output.entrySet()) {
+      files.add(entry.getKey());
+      exportRowCount += entry.getValue();
+      totalBytes += new File(entry.getKey()).length();
     }
     long endTime = System.nanoTime();
     LocalDateTime endLocalTime = LocalDateTime.now();
@@ -152,6 +173,44 @@ public class OracleAvroFns implements AvroFns {
         statistics);
   }
 
+  /**
+   * Rows per round trip, about fetch.bytes worth of rows of average length, or fetch.row.count if either is unknown
+   */
+  private int fetchRows(Table table) {
+    if (fetchBytes <= 0 || table.getAvgRowLength() <= 0) {
+      return fetchSize;
+    }
+    long rows = fetchBytes / table.getAvgRowLength();
+    return (int) Math.max(MIN_FETCH_ROWS, Math.min(MAX_FETCH_ROWS, rows));
+  }
+
+  /**
+   * Defines the types of the exported columns, as they are in the catalog, so the driver does not have to describe
+   * the query, and sets the LOB prefetch size so LOBs up to that size come back with the row rather than as a locator
+   * to fetch each value with. Chunk queries select the exportable columns in catalog order.
+   */
+  private void setup(Statement statement, Query queryObject) throws SQLException {
+    OracleStatement oracleStatement = statement.unwrap(OracleStatement.class);
+    if (lobPrefetchBytes > 0) {
+      oracleStatement.setLobPrefetchSize(lobPrefetchBytes);
+    }
+    if (queryObject.getColumns() == null) {
+      return;
+    }
+    try {
+      int index = 0;
+      for (Column column : queryObject.getColumns()) {
+        if (column.isExportable()) {
+          boolean dateString = stringDatetime && column.vendorType.equals("DATE");
+          oracleStatement.defineColumnType(++index, dateString ? Types.VARCHAR : column.jdbcType);
+        }
+      }
+    } catch (SQLException e) {
+      LOGGER.debug("Not defining column types of {}: {}", queryObject.getName(), e.getMessage());
+      oracleStatement.clearDefines();
+    }
+  }
+
   private String tidy(final String name) {
     if (name != null && tidyTables) {
       return name.replaceAll("[^a-zA-Z0-9]", " ")
@@ -18,15 +18,20 @@
 package com.github.susom.starr.dbtoavro.functions.impl;
 
 import com.github.susom.database.Config;
+import com.github.susom.database.Database;
 import com.github.susom.starr.dbtoavro.entity.Column;
 import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.entity.Query;
+import com.github.susom.starr.dbtoavro.entity.SchemaCatalog;
+import com.github.susom.starr.dbtoavro.entity.SplitTableStrategy;
+import com.github.susom.starr.dbtoavro.entity.SplitTableStrategyOperation;
 import com.github.susom.starr.dbtoavro.entity.Statistics;
 import com.github.susom.starr.dbtoavro.entity.Table;
 import com.github.susom.starr.dbtoavro.functions.DatabaseFns;
 import com.github.susom.database.DatabaseProvider.Builder;
-import com.google.common.collect.Lists;
+import com.github.susom.database.SqlSelect;
 
+import io.reactivex.Completable;
 import io.reactivex.Observable;
 import io.reactivex.Single;
 import java.sql.DatabaseMetaData;
@@ -37,9 +42,13 @@ import java.sql.Connection;
 import java.sql.CallableStatement;
 import oracle.jdbc.OracleTypes;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
@@ -52,28 +61,39 @@ public class OracleDatabaseFns extends DatabaseFns {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OracleDatabaseFns.class);
   private static final String STRING_DATE_FORMAT = "YYYY-MM-DD\"T\"HH24:MI:SS";
-  private static final String partialSql =
-      "			SELECT ' WHERE ROWID BETWEEN ''' "
-          + "			   || DBMS_ROWID.ROWID_CREATE(1, DATA_OBJECT_ID, LO_FNO, LO_BLOCK, 0) "
-          + "			   || ''' AND ''' "
-          + "			   || DBMS_ROWID.ROWID_CREATE(1, DATA_OBJECT_ID, HI_FNO, HI_BLOCK, 10000) "
-          + "			   || '''' "
-          + "				BULK COLLECT INTO query_collection_string "
-          + "				FROM ( "
-          + "			   SELECT DISTINCT GRP, "
-          + "							 FIRST_VALUE(RELATIVE_FNO) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING)         LO_FNO, "
-          + "							 FIRST_VALUE(BLOCK_ID) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING)             LO_BLOCK, "
-          + "							 LAST_VALUE(RELATIVE_FNO) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING)          HI_FNO, "
-          + "							 LAST_VALUE(BLOCK_ID + BLOCKS - 1) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING) HI_BLOCK, "
-          + "							 SUM(BLOCKS) OVER (PARTITION BY GRP)                                                                                                                SUM_BLOCKS "
-          + "			    FROM (SELECT RELATIVE_FNO, "
-          + "						  BLOCK_ID, "
-          + "						  BLOCKS, "
-          + "							TRUNC((SUM(BLOCKS) OVER (ORDER BY RELATIVE_FNO, BLOCK_ID) - 0.01) / (SUM(BLOCKS) OVER () / 256)) GRP "
-          + "					    FROM DBA_EXTENTS ";
+
+  /**
+   * Groups the extents of a segment into ROWID ranges of about the given number of blocks, the caller appends the
+   * filter on DBA_EXTENTS and the data object id
+   */
+  private static String partialSql(long blocksPerGroup) {
+    return "			SELECT ' WHERE ROWID BETWEEN ''' "
+        + "			   || DBMS_ROWID.ROWID_CREATE(1, DATA_OBJECT_ID, LO_FNO, LO_BLOCK, 0) "
+        + "			   || ''' AND ''' "
+        + "			   || DBMS_ROWID.ROWID_CREATE(1, DATA_OBJECT_ID, HI_FNO, HI_BLOCK, 10000) "
+        + "			   || '''' "
+        + "				BULK COLLECT INTO query_collection_string "
+        + "				FROM ( "
+        + "			   SELECT DISTINCT GRP, "
+        + "							 FIRST_VALUE(RELATIVE_FNO) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING)         LO_FNO, "
+        + "							 FIRST_VALUE(BLOCK_ID) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING)             LO_BLOCK, "
+        + "							 LAST_VALUE(RELATIVE_FNO) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING)          HI_FNO, "
+        + "							 LAST_VALUE(BLOCK_ID + BLOCKS - 1) OVER (PARTITION BY GRP ORDER BY RELATIVE_FNO, BLOCK_ID ROWS BETWEEN UNBOUNDED PRECEDING AND UNBOUNDED FOLLOWING) HI_BLOCK, "
+        + "							 SUM(BLOCKS) OVER (PARTITION BY GRP)                                                                                                                SUM_BLOCKS "
+        + "			    FROM (SELECT RELATIVE_FNO, "
+        + "						  BLOCK_ID, "
+        + "						  BLOCKS, "
+        + "							TRUNC((SUM(BLOCKS) OVER (ORDER BY RELATIVE_FNO, BLOCK_ID) - 0.01) / " + blocksPerGroup + ") GRP "
+        + "					    FROM DBA_EXTENTS ";
+  }
+
   private static Pattern startPattern = Pattern.compile("ROWID BETWEEN '(.*?)'");
   private static Pattern endPattern = Pattern.compile("' AND '(.*?)'");
-  private int BATCH_SIZE = 100;
+  private static final String ROWID_DIGITS = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+  private static final int BATCH_SIZE = 100;
+  private final Map<String, Single<Map<String, List<Extent>>>> extentMaps = new ConcurrentHashMap<>();
+
+  private static Pattern rowidRangePattern = Pattern.compile(" WHERE ROWID BETWEEN '([^']+)' AND '([^']+)'");
 
   public OracleDatabaseFns(Config config, Builder dbb) {
     super(config, dbb);
@@ -84,6 +104,15 @@ public class OracleDatabaseFns extends DatabaseFns {
     return matcher.find() ? matcher.group(1) : "";
   }
 
+  private static String getLastId(String input, Pattern pattern) {
+    Matcher matcher = pattern.matcher(input);
+    String id = "";
+    while (matcher.find()) {
+      id = matcher.group(1);
+    }
+    return id;
+  }
+
   @Override
   public Observable<String> getSchemas(String catalog) {
     return Observable.fromCallable(
@@ -103,44 +132,47 @@ public class OracleDatabaseFns extends DatabaseFns {
         .flatMapIterable(l -> l);
   }
 
-  private List<Column> retrieveColumns(
-      DatabaseMetaData metadata,
-      String catalog,
-      String schema,
-      String table,
-      List<String> columnExclusions)
-      throws SQLException {
-    // Retrieve columns
-    List<Column> cols = new ArrayList<>();
-    try (ResultSet columns = metadata.getColumns(catalog, schema, table, "%")) {
-      while (columns.next()) {
-        String name = columns.getString(4);
-        int jdbcType = columns.getInt(5);
-        String vendorType = columns.getString(6);
-        boolean supported = isSupported(jdbcType);
-        boolean exclude =
-            columnExclusions.stream()
-                .anyMatch(re -> (schema + "." + table + "." + name).matches("(?i:" + re + ")"));
-        cols.add(new Column(name, jdbcType, vendorType, supported, exclude));
-        if (!supported) {
-          LOGGER.debug(
-              "[{}].[{}].[{}] has unsupported type {} ({})",
-              schema,
-              table,
-              name,
-              vendorType,
-              jdbcType);
-        }
-      }
-      // Get primary keys
-      try (ResultSet pks = metadata.getPrimaryKeys(catalog, schema, table)) {
-        while (pks.next()) {
-          String colName = pks.getString(4);
-          cols.stream().filter(c -> c.name.equals(colName)).forEach(c -> c.primaryKey = true);
-        }
-      }
-    }
-    return cols;
+  @Override
+  protected SchemaCatalog readCatalog(Database database, String schema, Job job) throws SQLException {
+    database.underlyingConnection().setSchema(schema);
+    SchemaCatalog schemaCatalog =
+        readColumns(
+            database.underlyingConnection().getMetaData(), job.catalog, schema, job.columnExclusions);
+    database
+        .toSelect(
+            "SELECT cc.table_name, cc.column_name FROM all_constraints c "
+                + "INNER JOIN all_cons_columns cc ON cc.owner = c.owner AND cc.constraint_name = c.constraint_name "
+                + "WHERE c.constraint_type = 'P' AND c.owner = ?")
+        .argString(schema)
+        .queryMany(
+            rs -> {
+              schemaCatalog.setPrimaryKey(rs.getStringOrNull(), rs.getStringOrNull());
+              return null;
+            });
+    // Row counts and lengths are as of the last statistics gathering
+    database
+        .toSelect("SELECT table_name, num_rows, avg_row_len FROM all_tables WHERE owner = ?")
+        .argString(schema)
+        .queryMany(
+            rs -> {
+              String table = rs.getStringOrNull();
+              schemaCatalog.setRowCount(table, rs.getLongOrZero());
+              schemaCatalog.setRowLength(table, rs.getLongOrZero());
+              return null;
+            });
+    // Segment sizes, to size the ROWID chunks of the tables
+    database
+        .toSelect(
+            "SELECT segment_name, SUM(blocks), SUM(bytes) FROM dba_segments WHERE owner = ? "
+                + "AND segment_type IN ('TABLE', 'TABLE PARTITION', 'TABLE SUBPARTITION') "
+                + "GROUP BY segment_name")
+        .argString(schema)
+        .queryMany(
+            rs -> {
+              schemaCatalog.setSegmentSize(rs.getStringOrNull(), rs.getLongOrZero(), rs.getLongOrZero());
+              return null;
+            });
+    return schemaCatalog;
   }
 
   /** Not used in Oracle */
@@ -200,12 +232,126 @@ public class OracleDatabaseFns extends DatabaseFns {
         .flatMapIterable(l -> l);
   }
 
+  /**
+   * Indexes the columns of the split strategies, after a lean restore left out all indexes. Each index is built in
+   * parallel without redo logging. Strategies without a schema in their table name index the table in each exported
+   * schema that has it, and an index that cannot be built is only logged.
+   *
+   * @param job job with the split strategies
+   * @return completable, complete once all indexes are built
+   */
+  public Completable createSplitIndexes(Job job) {
+    return Completable.fromAction(
+        () ->
+            dbb.transact(
+                db -> {
+                  int parallel =
+                      Math.max(1, (int) (Runtime.getRuntime().availableProcessors()
+                          * config.getDouble("oracle.impdp.core.multiplier", 1.0)));
+                  for (SplitTableStrategy strategy : job.splitTableStrategies) {
+                    String[] name = strategy.getTableName().toUpperCase(Locale.ROOT).split("\\.");
+                    List<String> columns =
+                        strategy.getColumns() != null && !strategy.getColumns().isEmpty()
+                            ? strategy.getColumns()
+                            : Collections.singletonList(strategy.getColumn());
+                    if (name.length > 2 || columns.contains(null)) {
+                      LOGGER.warn("Not indexing {}, a table and a column are needed", strategy);
+                      continue;
+                    }
+                    String table = name[name.length - 1];
+                    List<String> owners =
+                        name.length == 2
+                            ? Collections.singletonList(name[0])
+                            : db.get()
+                                .toSelect("SELECT owner FROM all_tables WHERE table_name = ?")
+                                .argString(table)
+                                .queryMany(rs -> rs.getStringOrNull())
+                                .stream()
+                                .filter(owner -> job.schemas.isEmpty()
+                                    || job.schemas.stream().anyMatch(owner::equalsIgnoreCase))
+                                .collect(Collectors.toList());
+                    if (owners.isEmpty()) {
+                      LOGGER.warn("Not indexing {}, no exported schema has table {}", strategy, table);
+                    }
+                    String columnList =
+                        columns.stream()
+                            .map(column -> "\"" + column.replace("\"", "").trim().toUpperCase(Locale.ROOT) + "\"")
+                            .collect(Collectors.joining(", "));
+                    for (String owner : owners) {
+                      createSplitIndex(db.get(), owner, table, columnList, parallel);
+                    }
+                  }
+                }));
+  }
+
+  /**
+   * Builds one index of {@link #createSplitIndexes(Job)}, logging rather than failing if it cannot be built
+   */
+  private void createSplitIndex(Database database, String owner, String table, String columns, int parallel) {
+    String index = String.format(Locale.ROOT, "D2A_%08X", (table + columns).hashCode());
+    String ddl =
+        String.format(
+            Locale.ROOT,
+            "CREATE INDEX \"%s\".\"%s\" ON \"%s\".\"%s\" (%s) NOLOGGING PARALLEL %d",
+            owner,
+            index,
+            owner,
+            table,
+            columns,
+            parallel);
+    long start = System.nanoTime();
+    try {
+      database.ddl(ddl).execute();
+      // Parallel is only for the build, chunk queries each run on their own
+      database.ddl(String.format(Locale.ROOT, "ALTER INDEX \"%s\".\"%s\" NOPARALLEL", owner, index)).execute();
+      LOGGER.info("Indexed {}.{} ({}) in {}s", owner, table, columns, (System.nanoTime() - start) / 1000000000);
+    } catch (Exception e) {
+      LOGGER.warn("Could not index {}.{} ({}): {}", owner, table, columns, e.getMessage());
+    }
+  }
+
   @Override
-  public Observable<Query> getQueries(String schema, String tableName, Job job) {
+  public Single<Map<String, Long>> getTableSizes(String schema, Job job) {
+    return Single.fromCallable(
+        () ->
+            dbb.transactReturning(
+                db -> {
+                  Map<String, Long> sizes = new HashMap<>();
+                  db.get()
+                      .toSelect(
+                          "SELECT segment_name, SUM(bytes) FROM dba_segments WHERE owner = ? "
+                              + "AND segment_type IN ('TABLE', 'TABLE PARTITION', 'TABLE SUBPARTITION') "
+                              + "GROUP BY segment_name")
+                      .argString(schema)
+                      .queryMany(rs -> sizes.put(rs.getStringOrNull(), rs.getLongOrZero()));
+                  return sizes;
+                }));
+  }
+
+  @Override
+  protected String getFingerprint(Database database, String schema, Job job) {
+    // Segment blocks grow with the data, last_ddl_time changes with the table definitions
+    return database
+        .toSelect(
+            "SELECT COUNT(*), TO_CHAR(MAX(last_ddl_time), 'YYYY-MM-DD HH24::MI::SS'), "
+                + "(SELECT SUM(blocks) FROM dba_segments WHERE owner = ?) "
+                + "FROM dba_objects WHERE owner = ? AND object_type = 'TABLE'")
+        .argString(schema)
+        .argString(schema)
+        .queryOneOrNull(
+            rs -> rs.getLongOrZero() + "|" + rs.getStringOrNull() + "|" + rs.getLongOrZero());
+  }
+
+  @Override
+  protected Observable<Query> planQueries(String schema, String tableName, Job job) {
     return Observable.fromCallable(
             () -> {
               String catalog = job.catalog;
-              List<String> columnExclusions = job.columnExclusions;
+              SchemaCatalog schemaCatalog = getCatalog(schema, job).blockingGet();
+              Map<String, List<Extent>> extentMap =
+                  "schema".equals(config.getString("rowid.planner", "table"))
+                      ? getExtentMap(schema, job).blockingGet()
+                      : null;
               return dbb.transactReturning(
                   db -> {
                     String conditionalQuery = null;
@@ -213,24 +359,35 @@ public class OracleDatabaseFns extends DatabaseFns {
                     List<String> listQueries = new ArrayList<>();
                     List<Query> queries = new ArrayList<>();
                     db.get().underlyingConnection().setSchema(schema);
-                    DatabaseMetaData metadata = db.get().underlyingConnection().getMetaData();
-                    List<Column> cols =
-                        retrieveColumns(metadata, catalog, schema, tableName, columnExclusions);
+                    List<Column> cols = schemaCatalog.getColumns(tableName);
 
                     if (cols.stream().noneMatch(Column::isExportable)) {
                       LOGGER.warn("Skipping table {}, no columns are exportable", tableName);
                       return queries;
                     }
 
-                    Table table = new Table(catalog, schema, tableName, cols);
+                    Table table =
+                        new Table(
+                            catalog,
+                            schema,
+                            tableName,
+                            cols,
+                            schemaCatalog.getRowCount(tableName),
+                            null);
+                    table.setAvgRowLength(schemaCatalog.getRowLength(tableName));
                     String columnSql = getColumnSql(job, table);
+                    long blocksPerGroup =
+                        extentMap == null
+                            ? getBlocksPerGroup(schema, tableName, schemaCatalog.getSegmentBlocks(tableName),
+                                schemaCatalog.getSegmentBytes(tableName))
+                            : 0;
 
                     if (job.tablesSplit.contains(
                         schema + "."
                             + tableName)) { // } || job.tablePriorities.contains(schema + "." +
                       // tableName)) {
                       conditionalQuery =
-                          partialSql
+                          partialSql(blocksPerGroup)
                               + "					   WHERE OWNER || '.' || SEGMENT_NAME = UPPER(t_owner||'.'||t_name) "
                               + "					   ORDER BY BLOCK_ID) "
                               + "			 ), "
@@ -286,7 +443,7 @@ public class OracleDatabaseFns extends DatabaseFns {
                               + "			 LOOP "
                               + "				 FOR j in sub_partitioned(t_owner, t_name, i.partition_name) "
                               + "				 LOOP "
-                              + partialSql
+                              + partialSql(blocksPerGroup)
                               + "					 WHERE OWNER || '.' || SEGMENT_NAME = UPPER(t_owner||'.'||t_name) and partition_name = j.subpartition_name "
                               + "					 ORDER BY BLOCK_ID) "
                               + "			     ), "
@@ -298,7 +455,7 @@ public class OracleDatabaseFns extends DatabaseFns {
                               + "	   ELSE /* it means only Partitioned no Sub Partitions */ "
                               + "		   FOR i IN partitioned(t_owner, t_name) "
                               + "		   LOOP "
-                              + partialSql
+                              + partialSql(blocksPerGroup)
                               + "        WHERE OWNER || '.' || SEGMENT_NAME = UPPER(t_owner||'.'||t_name) and partition_name=i.partition_name "
                               + "        ORDER BY BLOCK_ID) "
                               + "        ), "
@@ -313,18 +470,40 @@ public class OracleDatabaseFns extends DatabaseFns {
                               + "	  END IF; /* END IF of L_PART='Y' */   "
                               + " ? := l_rc; "
                               + "	End; ";
-                      Connection c = db.get().underlyingConnection();
-                      CallableStatement cs = c.prepareCall(plsql);
-                      cs.setString(1, schema);
-                      cs.setString(2, tableName);
-                      cs.registerOutParameter(3, OracleTypes.CURSOR);
-                      cs.execute();
-                      ResultSet cursorResultSet = (ResultSet) cs.getObject(3);
-                      while (cursorResultSet.next()) {
-                        listQueries.add(cursorResultSet.getString(1));
+                      SplitTableStrategy hash =
+                          getSplitTableStrategies(job, tableName).stream()
+                              .filter(s -> s.getOperation() == SplitTableStrategyOperation.hash)
+                              .findFirst()
+                              .orElse(null);
+                      List<String> partitionIds = new ArrayList<>();
+                      if (hash == null && config.getBooleanOrFalse("partition.chunks")) {
+                        listQueries.addAll(createQueriesPartition(db.get(), schema, tableName, partitionIds));
+                      }
+                      if (hash != null) {
+                        listQueries.addAll(createQueriesHash(hash, job.incrementFactor));
+                      } else if (!partitionIds.isEmpty()) {
+                        LOGGER.debug("Table {} is exported by partition, {} chunks", tableName, partitionIds.size());
+                      } else if (extentMap != null) {
+                        listQueries.addAll(createQueriesRowid(schema, tableName, extentMap.get(tableName)));
+                      } else {
+                        Connection c = db.get().underlyingConnection();
+                        CallableStatement cs = c.prepareCall(plsql);
+                        cs.setString(1, schema);
+                        cs.setString(2, tableName);
+                        cs.registerOutParameter(3, OracleTypes.CURSOR);
+                        cs.execute();
+                        ResultSet cursorResultSet = (ResultSet) cs.getObject(3);
+                        while (cursorResultSet.next()) {
+                          listQueries.add(cursorResultSet.getString(1));
+                        }
+                        cs.close();
                       }
-                      cs.close();
 
+                      if (partitionIds.isEmpty() && job.unionizeQuery.contains(schema + "." + tableName)) {
+                        int chunks = listQueries.size();
+                        listQueries = coalesceRowidRanges(listQueries);
+                        LOGGER.debug("Coalesced {} chunks of {} into {}", chunks, tableName, listQueries.size());
+                      }
                       List<String> updatedQueries =
                           listQueries.stream()
                               .map(
@@ -340,59 +519,28 @@ public class OracleDatabaseFns extends DatabaseFns {
 
                       // updatedQueries.forEach(System.out::println);
                       AtomicInteger index = new AtomicInteger(0);
-                      if (job.unionizeQuery.contains(schema + "." + tableName)) {
-                        List<List<String>> batches = Lists.partition(updatedQueries, BATCH_SIZE);
-                        List<String> unionizeQueries = new ArrayList<String>();
-
-                        batches.stream()
-                            .forEach(
-                                batch -> {
-                                  String result =
-                                      batch.stream().collect(Collectors.joining(" UNION \n"));
-                                  unionizeQueries.add(result);
-                                });
-                        table.setQueryCount(unionizeQueries.size());
-                        queries =
-                            unionizeQueries.stream()
-                                .collect(
-                                    Collectors.mapping(
-                                        query ->
-                                            new Query(
-                                                table,
-                                                query,
-                                                StringUtils.leftPad(
-                                                    String.valueOf(index.incrementAndGet()),
-                                                    7,
-                                                    "0"),
-                                                getId(query, startPattern)
-                                                    .replace('/', '_')
-                                                    .replace('+', '_'),
-                                                getId(query, endPattern)
-                                                    .replace('/', '_')
-                                                    .replace('+', '_')),
-                                        Collectors.toList()));
-                      } else {
-                        table.setQueryCount(updatedQueries.size());
-                        queries =
-                            updatedQueries.stream()
-                                .collect(
-                                    Collectors.mapping(
-                                        query ->
-                                            new Query(
-                                                table,
-                                                query,
-                                                StringUtils.leftPad(
-                                                    String.valueOf(index.incrementAndGet()),
-                                                    7,
-                                                    "0"),
-                                                getId(query, startPattern)
-                                                    .replace('/', '_')
-                                                    .replace('+', '_'),
-                                                getId(query, endPattern)
-                                                    .replace('/', '_')
-                                                    .replace('+', '_')),
-                                        Collectors.toList()));
-                      }
+                      table.setQueryCount(updatedQueries.size());
+                      queries =
+                          updatedQueries.stream()
+                              .collect(
+                                  Collectors.mapping(
+                                      query ->
+                                          new Query(
+                                              table,
+                                              query,
+                                              partitionIds.isEmpty()
+                                                  ? StringUtils.leftPad(
+                                                      String.valueOf(index.incrementAndGet()),
+                                                      7,
+                                                      "0")
+                                                  : partitionIds.get(index.getAndIncrement()),
+                                              getId(query, startPattern)
+                                                  .replace('/', '_')
+                                                  .replace('+', '_'),
+                                              getLastId(query, endPattern)
+                                                  .replace('/', '_')
+                                                  .replace('+', '_')),
+                                      Collectors.toList()));
                       LOGGER.debug("Table {} Number of queries {}", tableName, index.get());
                       LOGGER.info(
                           "{}",
@@ -419,6 +567,325 @@ public class OracleDatabaseFns extends DatabaseFns {
         .flatMapIterable(l -> l);
   }
 
+  /**
+   * Sizes the ROWID chunks of a table from its segments, to about chunk.target.mb each. A table big enough gets at
+   * least one chunk per writer thread, down to an eighth of the target size, so the threads are not left idle while it
+   * is the last table running. Partitions and subpartitions are chunked by the same number of blocks, so they get
+   * chunks in proportion to their size.
+   */
+  private long getBlocksPerGroup(String schema, String tableName, long blocks, long bytes) {
+    long targetBytes = config.getLong("chunk.target.mb", 512L) * 1024 * 1024;
+    long threads = config.getInteger("threads.max", config.getInteger("threads", 1));
+    if (blocks == 0 || targetBytes <= 0) {
+      return 1;
+    }
+    long groups = (bytes + targetBytes - 1) / targetBytes;
+    groups = Math.max(groups, Math.min(threads, (bytes * 8 + targetBytes - 1) / targetBytes));
+    long blocksPerGroup = Math.max(1, (blocks + groups - 1) / groups);
+    LOGGER.debug("Chunking {}.{} of {} MB into about {} ROWID ranges of {} blocks", schema, tableName,
+        bytes / 1024 / 1024, groups, blocksPerGroup);
+    return blocksPerGroup;
+  }
+
+  /**
+   * The extents of the split and partitioned tables of a schema, read from DBA_EXTENTS in a single pass and kept for
+   * all of its tables, by table name. Extents are in file and block order within each segment.
+   */
+  private Single<Map<String, List<Extent>>> getExtentMap(String schema, Job job) {
+    return extentMaps.computeIfAbsent(schema, s ->
+        Single.fromCallable(
+            () ->
+                dbb.transactReturning(
+                    db -> {
+                      long start = System.nanoTime();
+                      List<String> splitTables =
+                          job.tablesSplit.stream()
+                              .filter(t -> t.startsWith(s + "."))
+                              .map(t -> t.substring(s.length() + 1))
+                              .collect(Collectors.toList());
+                      StringBuilder sql =
+                          new StringBuilder(
+                              "SELECT e.segment_name, e.partition_name, o.data_object_id, e.relative_fno, e.block_id, "
+                                  + "e.blocks, e.bytes FROM dba_extents e JOIN dba_objects o ON o.owner = e.owner "
+                                  + "AND o.object_name = e.segment_name AND o.object_type = e.segment_type "
+                                  + "AND NVL(o.subobject_name, ' ') = NVL(e.partition_name, ' ') "
+                                  + "WHERE e.owner = ? AND (e.segment_type IN ('TABLE PARTITION', 'TABLE SUBPARTITION')");
+                      if (!splitTables.isEmpty()) {
+                        sql.append(" OR e.segment_type = 'TABLE' AND e.segment_name IN (")
+                            .append(String.join(", ", Collections.nCopies(splitTables.size(), "?")))
+                            .append(")");
+                      }
+                      sql.append(") ORDER BY e.segment_name, e.partition_name, e.relative_fno, e.block_id");
+                      SqlSelect select = db.get().toSelect(sql.toString()).argString(s);
+                      for (String table : splitTables) {
+                        select.argString(table);
+                      }
+                      Map<String, List<Extent>> extents = new HashMap<>();
+                      select.queryMany(
+                          rs -> {
+                            String table = rs.getStringOrNull();
+                            String segment = rs.getStringOrEmpty();
+                            extents
+                                .computeIfAbsent(table, t -> new ArrayList<>())
+                                .add(
+                                    new Extent(segment, rs.getLongOrZero(), rs.getLongOrZero(), rs.getLongOrZero(),
+                                        rs.getLongOrZero(), rs.getLongOrZero()));
+                            return null;
+                          });
+                      LOGGER.info("Read the extents of {} tables of schema {} in {}ms", extents.size(), s,
+                          (System.nanoTime() - start) / 1000000);
+                      return extents;
+                    }))
+            .doOnError(error -> extentMaps.remove(s))
+            .cache());
+  }
+
+  /**
+   * Chunks of a partitioned table named after its partitions, or its subpartitions if it has any, read with the
+   * PARTITION or SUBPARTITION clause, in partition order. A (sub)partition over partition.split.mb is split further
+   * into ROWID ranges of its own extents. Returns nothing if the table is not partitioned.
+   */
+  private List<String> createQueriesPartition(Database database, String schema, String tableName, List<String> ids) {
+    List<String> lq = new ArrayList<>();
+    String clause = "SUBPARTITION";
+    List<String> names =
+        database
+            .toSelect(
+                "SELECT s.subpartition_name FROM dba_tab_subpartitions s JOIN dba_tab_partitions p "
+                    + "ON p.table_owner = s.table_owner AND p.table_name = s.table_name "
+                    + "AND p.partition_name = s.partition_name WHERE s.table_owner = ? AND s.table_name = ? "
+                    + "ORDER BY p.partition_position, s.subpartition_position")
+            .argString(schema)
+            .argString(tableName)
+            .queryMany(rs -> rs.getStringOrNull());
+    if (names.isEmpty()) {
+      clause = "PARTITION";
+      names =
+          database
+              .toSelect(
+                  "SELECT partition_name FROM dba_tab_partitions WHERE table_owner = ? AND table_name = ? "
+                      + "ORDER BY partition_position")
+              .argString(schema)
+              .argString(tableName)
+              .queryMany(rs -> rs.getStringOrNull());
+    }
+    if (names.isEmpty()) {
+      return lq;
+    }
+    Map<String, Long> sizes = new HashMap<>();
+    database
+        .toSelect(
+            "SELECT partition_name, SUM(bytes) FROM dba_segments WHERE owner = ? AND segment_name = ? "
+                + "AND segment_type IN ('TABLE PARTITION', 'TABLE SUBPARTITION') GROUP BY partition_name")
+        .argString(schema)
+        .argString(tableName)
+        .queryMany(rs -> sizes.put(rs.getStringOrNull(), rs.getLongOrZero()));
+    long splitBytes = config.getLong("partition.split.mb", 4096L) * 1024 * 1024;
+    for (String name : names) {
+      List<Extent> extents =
+          splitBytes > 0 && sizes.getOrDefault(name, 0L) > splitBytes
+              ? readExtents(database, schema, tableName, name)
+              : Collections.emptyList();
+      if (extents.isEmpty()) {
+        lq.add(String.format(Locale.ROOT, " %s (\"%s\")", clause, name));
+        ids.add(name);
+      } else {
+        List<String> ranges = createQueriesRowid(schema, tableName + " " + name, extents);
+        for (int i = 0; i < ranges.size(); i++) {
+          lq.add(ranges.get(i));
+          ids.add(name + "." + StringUtils.leftPad(String.valueOf(i + 1), 4, "0"));
+        }
+      }
+    }
+    return lq;
+  }
+
+  private List<Extent> readExtents(Database database, String schema, String tableName, String partitionName) {
+    return database
+        .toSelect(
+            "SELECT o.data_object_id, e.relative_fno, e.block_id, e.blocks, e.bytes FROM dba_extents e "
+                + "JOIN dba_objects o ON o.owner = e.owner AND o.object_name = e.segment_name "
+                + "AND o.object_type = e.segment_type AND o.subobject_name = e.partition_name "
+                + "WHERE e.owner = ? AND e.segment_name = ? AND e.partition_name = ? "
+                + "ORDER BY e.relative_fno, e.block_id")
+        .argString(schema)
+        .argString(tableName)
+        .argString(partitionName)
+        .queryMany(
+            rs ->
+                new Extent(partitionName, rs.getLongOrZero(), rs.getLongOrZero(), rs.getLongOrZero(),
+                    rs.getLongOrZero(), rs.getLongOrZero()));
+  }
+
+  /**
+   * ROWID ranges like those of the PL/SQL planner, grouping the extents of each segment, but from the extents read for
+   * the whole schema. Tables that are neither split nor partitioned have no extents and are read whole.
+   */
+  private List<String> createQueriesRowid(String schema, String tableName, List<Extent> extents) {
+    List<String> lq = new ArrayList<>();
+    if (extents == null || extents.isEmpty()) {
+      lq.add(" ");
+      return lq;
+    }
+    long blocksPerGroup =
+        getBlocksPerGroup(schema, tableName, extents.stream().mapToLong(e -> e.blocks).sum(),
+            extents.stream().mapToLong(e -> e.bytes).sum());
+    Extent first = null;
+    Extent last = null;
+    long blocks = 0;
+    for (Extent extent : extents) {
+      if (first != null && (!extent.segment.equals(first.segment) || blocks >= blocksPerGroup)) {
+        lq.add(rowidRange(first, last));
+        first = null;
+      }
+      if (first == null) {
+        first = extent;
+        blocks = 0;
+      }
+      last = extent;
+      blocks += extent.blocks;
+    }
+    lq.add(rowidRange(first, last));
+    return lq;
+  }
+
+  private static String rowidRange(Extent first, Extent last) {
+    return " WHERE ROWID BETWEEN '"
+        + rowid(first.dataObjectId, first.fileNo, first.blockId, 0)
+        + "' AND '"
+        + rowid(last.dataObjectId, last.fileNo, last.blockId + last.blocks - 1, 10000)
+        + "'";
+  }
+
+  /**
+   * Extended ROWID, as DBMS_ROWID.ROWID_CREATE(1, ...) builds it
+   */
+  static String rowid(long dataObjectId, long fileNo, long blockNo, long rowNo) {
+    return base64(dataObjectId, 6) + base64(fileNo, 3) + base64(blockNo, 6) + base64(rowNo, 3);
+  }
+
+  /**
+   * For --unionize-query, in place of a UNION of chunk queries, which sorts the rows to remove duplicates that cannot
+   * exist. ROWID ranges of the same data object are sorted, a range starting in the file its predecessor ends in, at
+   * most one block past its end, is merged into it, and up to BATCH_SIZE of the original ranges are read by one query,
+   * as ROWID ranges OR-ed together. Chunks other than single ROWID ranges are left as they are.
+   */
+  static List<String> coalesceRowidRanges(List<String> partials) {
+    List<String> lq = new ArrayList<>();
+    List<long[]> ranges = new ArrayList<>();
+    for (String partial : partials) {
+      Matcher matcher = rowidRangePattern.matcher(partial);
+      if (matcher.matches()) {
+        // data object, first file, first block, first row, last file, last block, last row, chunks
+        String lo = matcher.group(1);
+        String hi = matcher.group(2);
+        ranges.add(
+            new long[] {
+              decode(lo, 0, 6), decode(lo, 6, 9), decode(lo, 9, 15), decode(lo, 15, 18), decode(hi, 6, 9),
+              decode(hi, 9, 15), decode(hi, 15, 18), 1
+            });
+      } else {
+        lq.add(partial);
+      }
+    }
+    ranges.sort(
+        (a, b) -> a[0] != b[0] ? Long.compare(a[0], b[0]) : a[1] != b[1] ? Long.compare(a[1], b[1])
+            : Long.compare(a[2], b[2]));
+    List<long[]> merged = new ArrayList<>();
+    for (long[] range : ranges) {
+      long[] last = merged.isEmpty() ? null : merged.get(merged.size() - 1);
+      if (last != null && last[0] == range[0] && last[4] == range[1] && range[2] <= last[5] + 1) {
+        if (range[4] > last[4] || range[4] == last[4]
+            && (range[5] > last[5] || range[5] == last[5] && range[6] > last[6])) {
+          last[4] = range[4];
+          last[5] = range[5];
+          last[6] = range[6];
+        }
+        last[7] += range[7];
+      } else {
+        merged.add(range);
+      }
+    }
+    StringBuilder where = new StringBuilder();
+    long object = -1;
+    long chunks = 0;
+    for (long[] range : merged) {
+      if (where.length() > 0 && (range[0] != object || chunks >= BATCH_SIZE)) {
+        lq.add(where.toString());
+        where.setLength(0);
+        chunks = 0;
+      }
+      where
+          .append(where.length() == 0 ? " WHERE" : " OR")
+          .append(" ROWID BETWEEN '")
+          .append(rowid(range[0], range[1], range[2], range[3]))
+          .append("' AND '")
+          .append(rowid(range[0], range[4], range[5], range[6]))
+          .append("'");
+      object = range[0];
+      chunks += range[7];
+    }
+    if (where.length() > 0) {
+      lq.add(where.toString());
+    }
+    return lq;
+  }
+
+  static long decode(String rowid, int from, int to) {
+    long value = 0;
+    for (int i = from; i < to; i++) {
+      value = value << 6 | ROWID_DIGITS.indexOf(rowid.charAt(i));
+    }
+    return value;
+  }
+
+  private static String base64(long value, int digits) {
+    char[] chars = new char[digits];
+    for (int i = digits - 1; i >= 0; i--) {
+      chars[i] = ROWID_DIGITS.charAt((int) (value & 63));
+      value >>>= 6;
+    }
+    return new String(chars);
+  }
+
+  /**
+   * Contiguous run of blocks of a table segment
+   */
+  private static class Extent {
+
+    final String segment;
+    final long dataObjectId;
+    final long fileNo;
+    final long blockId;
+    final long blocks;
+    final long bytes;
+
+    Extent(String segment, long dataObjectId, long fileNo, long blockId, long blocks, long bytes) {
+      this.segment = segment;
+      this.dataObjectId = dataObjectId;
+      this.fileNo = fileNo;
+      this.blockId = blockId;
+      this.blocks = blocks;
+      this.bytes = bytes;
+    }
+  }
+
+  /**
+   * Where clauses for buckets of a hash of the key columns, for tables with composite or non-numeric keys. ORA_HASH
+   * of NULL is NULL, so rows whose key columns are all NULL are put in the first bucket.
+   */
+  private List<String> createQueriesHash(SplitTableStrategy splitTableStrategy, long incrementFactor) {
+    long buckets =
+        splitTableStrategy.getIncrement() != null ? splitTableStrategy.getIncrement() : incrementFactor;
+    String key = String.join(" || '|' || ", splitTableStrategy.getColumns());
+    List<String> lq = new ArrayList<>();
+    for (long i = 0; i < buckets; i++) {
+      lq.add(String.format(Locale.ROOT, " WHERE NVL(ORA_HASH(%s, %d), 0) = %d", key, buckets - 1, i));
+    }
+    LOGGER.debug("Hashing {} into {} buckets", key, buckets);
+    return lq;
+  }
+
   private String getColumnSql(Job job, Table table) {
     return table.getColumns().stream()
         .filter(Column::isExportable)
@@ -2,14 +2,20 @@ package com.github.susom.starr.dbtoavro.functions.impl;
 
 import com.github.susom.database.Config;
 import com.github.susom.starr.dbtoavro.docker.ConsoleOutput;
+import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.functions.DockerFns;
 import io.reactivex.Completable;
 import io.reactivex.Observable;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.List;
 import java.util.Locale;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.UUID;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -18,6 +24,11 @@ public class OracleDockerFns extends DockerFns {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(OracleDockerFns.class);
 
+  /**
+   * Objects a lean restore leaves out, none of which an export needs
+   */
+  private static final String LEAN_EXCLUDE = "EXCLUDE=INDEX,CONSTRAINT,REF_CONSTRAINT,STATISTICS,GRANT,TRIGGER";
+
   private final int impdpThreads;
 
   public OracleDockerFns(Config config) {
@@ -27,17 +38,83 @@ public class OracleDockerFns extends DockerFns {
         .getDouble("oracle.impdp.core.multiplier", 1.0)));
   }
 
-  public Observable<ConsoleOutput> impdp(final String containerId, final List<String> backupFiles) {
-    if (backupFiles.size() != 1) {
+  /**
+   * Runs a data pump import in the container, of only the schemas and tables the job will export
+   *
+   * @param containerId running database
+   * @param job job with the .par file in /backup, the export filters and whether to restore lean, leaving out
+   *     indexes, constraints, statistics, grants and triggers, and skipping redo logging of the tables, on top of
+   *     what the .par file says
+   * @return console output of impdp
+   */
+  public Observable<ConsoleOutput> impdp(final String containerId, final Job job) {
+    if (job.backupFiles.size() != 1) {
       return Observable.error(new Throwable("Oracle impdp requires a single .par file."));
     }
-    return dockerService.exec(containerId,
-        "impdp",
-        String.format(Locale.ROOT, "userid=%s/%s@//0.0.0.0:1521/ORCLPDB1", config.getString("database.user"),
-            config.getString("database.password")),
-        (impdpThreads > 0) ? "PARALLEL=" + impdpThreads : "",
-        "PARFILE=/backup/" + backupFiles.get(0)
-    );
+    List<String> cmd = new ArrayList<>();
+    cmd.add("impdp");
+    cmd.add(String.format(Locale.ROOT, "userid=%s/%s@//0.0.0.0:1521/ORCLPDB1", config.getString("database.user"),
+        config.getString("database.password")));
+    if (impdpThreads > 0) {
+      cmd.add("PARALLEL=" + impdpThreads);
+    }
+    cmd.add("PARFILE=/backup/" + job.backupFiles.get(0));
+    if (job.leanRestore) {
+      cmd.add(LEAN_EXCLUDE);
+      cmd.add("TRANSFORM=DISABLE_ARCHIVE_LOGGING:Y");
+    }
+    List<String> filters = impdpFilters(job);
+    if (!filters.isEmpty()) {
+      LOGGER.info("Importing with {}", filters);
+      cmd.addAll(filters);
+    }
+    return dockerService.exec(containerId, cmd.toArray(new String[0]));
+  }
+
+  /**
+   * The export filters of a job as impdp EXCLUDE clauses, which work whatever mode the .par file imports in. A
+   * filter is left to the export when it cannot be expressed exactly: table name clauses apply to every schema, so
+   * only names kept, or excluded, in all the schemas being imported can be passed on.
+   */
+  static List<String> impdpFilters(Job job) {
+    List<String> filters = new ArrayList<>();
+    if (!job.schemas.isEmpty()) {
+      filters.add("EXCLUDE=SCHEMA:\"NOT IN (" + quoted(job.schemas) + ")\"");
+    }
+    Predicate<String> excluded =
+        schemaTable -> job.tableExclusions.stream().anyMatch(re -> schemaTable.matches("(?i:" + re + ")"));
+    if (!job.tables.isEmpty()) {
+      Set<String> kept = new TreeSet<>();
+      for (String schemaTable : job.tables) {
+        int dot = schemaTable.indexOf('.');
+        String schema = schemaTable.substring(0, Math.max(dot, 0));
+        if (dot > 0 && !excluded.test(schemaTable) && (job.schemas.isEmpty() || job.schemas.contains(schema))) {
+          kept.add(schemaTable.substring(dot + 1));
+        }
+      }
+      if (!kept.isEmpty()) {
+        filters.add("EXCLUDE=TABLE:\"NOT IN (" + quoted(kept) + ")\"");
+      }
+    } else if (!job.schemas.isEmpty() && !job.tableExclusions.isEmpty()) {
+      // Literal schema.table exclusions, for table names excluded in every schema imported
+      Set<String> names = new TreeSet<>();
+      for (String re : job.tableExclusions) {
+        if (re.matches("[A-Za-z0-9_$#]+\\\\?\\.[A-Za-z0-9_$#]+")) {
+          String name = re.substring(re.indexOf('.') + 1).toUpperCase(Locale.ROOT);
+          if (job.schemas.stream().allMatch(schema -> excluded.test(schema + "." + name))) {
+            names.add(name);
+          }
+        }
+      }
+      if (!names.isEmpty()) {
+        filters.add("EXCLUDE=TABLE:\"IN (" + quoted(names) + ")\"");
+      }
+    }
+    return filters;
+  }
+
+  private static String quoted(Collection<String> names) {
+    return names.stream().map(name -> "'" + name + "'").collect(Collectors.joining(","));
   }
 
   /**
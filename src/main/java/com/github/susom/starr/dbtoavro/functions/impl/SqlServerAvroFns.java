@@ -1,15 +1,16 @@
 package com.github.susom.starr.dbtoavro.functions.impl;
 
-import com.github.susom.dbgoodies.etl.Etl;
 import com.github.susom.starr.dbtoavro.entity.AvroFile;
 import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.entity.Query;
 import com.github.susom.starr.dbtoavro.entity.Statistics;
 import com.github.susom.starr.dbtoavro.entity.Table;
 import com.github.susom.starr.dbtoavro.functions.AvroFns;
+import com.github.susom.starr.dbtoavro.functions.AvroWriter;
+import com.github.susom.starr.dbtoavro.functions.CodecSelector;
+import com.github.susom.starr.dbtoavro.functions.ExportMetrics;
 import com.github.susom.database.DatabaseProvider;
 import io.reactivex.Single;
-import org.apache.avro.file.CodecFactory;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -22,6 +23,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
 
 public class SqlServerAvroFns implements AvroFns {
 
@@ -29,16 +31,21 @@ public class SqlServerAvroFns implements AvroFns {
 
   private final DatabaseProvider.Builder dbb;
   private final int fetchSize;
-  private CodecFactory codec;
+  private final ExecutorService compressionPool;
+  private final ExportMetrics metrics;
+  private CodecSelector codecSelector;
   private boolean tidyTables;
   private String filenamePattern;
   private String destination;
   private int avroSize;
 
-  public SqlServerAvroFns(Job job, DatabaseProvider.Builder dbb) {
+  public SqlServerAvroFns(Job job, DatabaseProvider.Builder dbb, ExecutorService compressionPool,
+      ExportMetrics metrics) {
     this.dbb = dbb;
+    this.compressionPool = compressionPool;
+    this.metrics = metrics;
     this.fetchSize = job.fetchRows;
-    this.codec = CodecFactory.fromString(job.codec);
+    this.codecSelector = CodecSelector.fromString(job.codec);
     this.tidyTables = job.tidyTables;
     this.avroSize = job.avroSize;
     this.filenamePattern = job.filenamePattern;
@@ -85,23 +92,29 @@ public class SqlServerAvroFns implements AvroFns {
                           table.getDbRowCount(),
                           queryObject.getQuery()));
 
-                  Etl.SaveAsAvro avro =
-                      Etl.saveQuery(db.get().toSelect(queryObject.query))
-                          .asAvro(
+                  String sql = queryObject.getExportQuery();
+                  LOGGER.info(
+                      "Writing {} for queryId {}, query is {}",
+                      path,
+                      queryObject.getId(),
+                      sql);
+                  Map<String, Long> output =
+                      new AvroWriter(codecSelector, compressionPool, fetchSize, avroSize, metrics)
+                          .write(
+                              db.get().underlyingConnection(),
+                              sql,
                               Paths.get(destination, path).toString(),
                               queryObject.getSchema(),
-                              queryObject.getName())
-                          .withCodec(codec)
-                          .fetchSize(fetchSize);
-                  return processSql(startLocalTime, startTime, path, avro, queryObject);
+                              queryObject.getName(),
+                              queryObject.keyRange);
+                  return processSql(startLocalTime, startTime, output, queryObject);
                 }));
   }
 
   private AvroFile processSql(
       LocalDateTime startLocalTime,
       long startTime,
-      String path,
-      Etl.SaveAsAvro avro,
+      Map<String, Long> output,
       Query queryObject) {
 
     String query = queryObject.getQuery();
@@ -110,18 +123,10 @@ public class SqlServerAvroFns implements AvroFns {
     List<String> files = new ArrayList<>();
     long exportRowCount = 0;
     long totalBytes = 0;
-    LOGGER.info("Writing {} for queryId {}, query is {}", path, queryId, query);
-    if (avroSize > 0) {
-      Map<String, Long> output = avro.start(avroSize);
-      for (Map.Entry<String, Long> entry : output.entrySet()) {
-        files.add(entry.getKey());
-        exportRowCount += entry.getValue();
-        totalBytes += new File(entry.getKey()).length();
-      }
-    } else {
-      exportRowCount = avro.start();
-      totalBytes = new File(path).length();
-      files.add(path);
+    for (Map.Entry<String, Long> entry : output.entrySet()) {
+      files.add(entry.getKey());
+      exportRowCount += entry.getValue();
+      totalBytes += new File(entry.getKey()).length();
     }
     long endTime = System.nanoTime();
     LocalDateTime endLocalTime = LocalDateTime.now();
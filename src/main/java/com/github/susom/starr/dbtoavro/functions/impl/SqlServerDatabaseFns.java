@@ -19,13 +19,16 @@ package com.github.susom.starr.dbtoavro.functions.impl;
 
 import com.github.susom.database.Config;
 import com.github.susom.database.Database;
+import com.github.susom.database.DatabaseException;
 import com.github.susom.database.DatabaseProvider.Builder;
 import com.github.susom.database.SqlSelect;
 import com.github.susom.starr.dbtoavro.entity.Column;
 import com.github.susom.starr.dbtoavro.entity.Statistics;
 import com.github.susom.starr.dbtoavro.entity.Job;
 import com.github.susom.starr.dbtoavro.entity.KeyDataType;
+import com.github.susom.starr.dbtoavro.entity.KeyRange;
 import com.github.susom.starr.dbtoavro.entity.Query;
+import com.github.susom.starr.dbtoavro.entity.SchemaCatalog;
 import com.github.susom.starr.dbtoavro.entity.SplitTableStrategy;
 import com.github.susom.starr.dbtoavro.entity.SplitTableStrategyOperation;
 import com.github.susom.starr.dbtoavro.entity.Table;
@@ -39,16 +42,22 @@ import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Types;
-import java.text.SimpleDateFormat;
+import java.time.DayOfWeek;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
 import java.util.ArrayList;
+import java.util.Date;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Locale;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.IntStream;
-import jdk.internal.org.jline.reader.Completer;
 import org.apache.commons.lang.StringUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -57,7 +66,6 @@ import org.slf4j.LoggerFactory;
 public class SqlServerDatabaseFns extends DatabaseFns {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(SqlServerDatabaseFns.class);
-  private static final String DATE_FORMAT = "yyyy-MM-dd";
   private static int STRING_DATE_CONVERSION = 126;
   private static String SQL_DECORATOR = ""; // " WITH (NOLOCK) ";
   private static String SQL_DECORATOR_NON_DATA = ""; // " WITH (NOLOCK) ";
@@ -94,44 +102,72 @@ public class SqlServerDatabaseFns extends DatabaseFns {
         .flatMapIterable(l -> l);
   }
 
-  private List<Column> retrieveColumns(
-      DatabaseMetaData metadata,
-      String catalog,
-      String schema,
-      String table,
-      List<String> columnExclusions)
-      throws SQLException {
-    // Retrieve columns
-    List<Column> cols = new ArrayList<>();
-    try (ResultSet columns = metadata.getColumns(catalog, schema, table, "%")) {
-      while (columns.next()) {
-        String name = columns.getString(4);
-        int jdbcType = columns.getInt(5);
-        String vendorType = columns.getString(6);
-        boolean supported = isSupported(jdbcType);
-        boolean exclude =
-            columnExclusions.stream()
-                .anyMatch(re -> (schema + "." + table + "." + name).matches("(?i:" + re + ")"));
-        cols.add(new Column(name, jdbcType, vendorType, supported, exclude));
-        if (!supported) {
-          LOGGER.debug(
-              "[{}].[{}].[{}] has unsupported type {} ({})",
-              schema,
-              table,
-              name,
-              vendorType,
-              jdbcType);
-        }
-      }
-      // Get primary keys
-      try (ResultSet pks = metadata.getPrimaryKeys(catalog, schema, table)) {
-        while (pks.next()) {
-          String colName = pks.getString(4);
-          cols.stream().filter(c -> c.name.equals(colName)).forEach(c -> c.primaryKey = true);
-        }
-      }
-    }
-    return cols;
+  @Override
+  protected SchemaCatalog readCatalog(Database database, String schema, Job job) throws SQLException {
+    String catalog = job.catalog;
+    database.underlyingConnection().setSchema(schema);
+    SchemaCatalog schemaCatalog =
+        readColumns(
+            database.underlyingConnection().getMetaData(), catalog, schema, job.columnExclusions);
+    database
+        .toSelect(
+            String.format(
+                Locale.ROOT,
+                "SELECT t.name, c.name FROM [%1$s].sys.indexes i "
+                    + "INNER JOIN [%1$s].sys.index_columns ic ON ic.object_id = i.object_id AND ic.index_id = i.index_id "
+                    + "INNER JOIN [%1$s].sys.columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id "
+                    + "INNER JOIN [%1$s].sys.tables t ON t.object_id = i.object_id "
+                    + "INNER JOIN [%1$s].sys.schemas s ON s.schema_id = t.schema_id "
+                    + "WHERE i.is_primary_key = 1 AND s.name = ?",
+                catalog))
+        .argString(schema)
+        .queryMany(
+            rs -> {
+              schemaCatalog.setPrimaryKey(rs.getStringOrNull(), rs.getStringOrNull());
+              return null;
+            });
+    database
+        .toSelect(
+            String.format(
+                Locale.ROOT,
+                "SELECT t.name, SUM(p.rows) FROM [%1$s].sys.tables t "
+                    + "INNER JOIN [%1$s].sys.partitions p ON p.object_id = t.object_id AND p.index_id IN (0, 1) "
+                    + "INNER JOIN [%1$s].sys.schemas s ON s.schema_id = t.schema_id "
+                    + "WHERE s.name = ? "
+                    + "GROUP BY t.name",
+                catalog))
+        .argString(schema)
+        .queryMany(
+            rs -> {
+              schemaCatalog.setRowCount(rs.getStringOrNull(), rs.getLongOrZero());
+              return null;
+            });
+    // Partition function, partitioning column and partition rows of the heap or clustered index
+    database
+        .toSelect(
+            String.format(
+                Locale.ROOT,
+                "SELECT t.name, pf.name, c.name, p.partition_number, p.rows FROM [%1$s].sys.tables t "
+                    + "INNER JOIN [%1$s].sys.schemas s ON s.schema_id = t.schema_id "
+                    + "INNER JOIN [%1$s].sys.indexes i ON i.object_id = t.object_id AND i.index_id IN (0, 1) "
+                    + "INNER JOIN [%1$s].sys.partition_schemes ps ON ps.data_space_id = i.data_space_id "
+                    + "INNER JOIN [%1$s].sys.partition_functions pf ON pf.function_id = ps.function_id "
+                    + "INNER JOIN [%1$s].sys.index_columns ic ON ic.object_id = i.object_id "
+                    + "AND ic.index_id = i.index_id AND ic.partition_ordinal = 1 "
+                    + "INNER JOIN [%1$s].sys.columns c ON c.object_id = ic.object_id AND c.column_id = ic.column_id "
+                    + "INNER JOIN [%1$s].sys.partitions p ON p.object_id = i.object_id AND p.index_id = i.index_id "
+                    + "WHERE s.name = ? "
+                    + "ORDER BY t.name, p.partition_number",
+                catalog))
+        .argString(schema)
+        .queryMany(
+            rs -> {
+              schemaCatalog.addPartition(
+                  rs.getStringOrNull(), rs.getStringOrNull(), rs.getStringOrNull(), rs.getIntegerOrZero(),
+                  rs.getLongOrZero());
+              return null;
+            });
+    return schemaCatalog;
   }
 
   /**
@@ -285,43 +321,81 @@ public class SqlServerDatabaseFns extends DatabaseFns {
   }
 
   @Override
-  public Observable<Query> getQueries(String schema, String tableName, Job job) {
+  public Single<Map<String, Long>> getTableSizes(String schema, Job job) {
+    return Single.fromCallable(
+        () ->
+            dbb.transactReturning(
+                db -> {
+                  // Data pages of the heap or clustered index, including LOB and row-overflow pages
+                  String sql =
+                      String.format(
+                          Locale.ROOT,
+                          "SELECT t.name, SUM(a.used_pages) * 8192 "
+                              + "FROM [%1$s].sys.tables t "
+                              + "INNER JOIN [%1$s].sys.schemas s ON s.schema_id = t.schema_id "
+                              + "INNER JOIN [%1$s].sys.partitions p ON p.object_id = t.object_id AND p.index_id IN (0, 1) "
+                              + "INNER JOIN [%1$s].sys.allocation_units a ON a.container_id = "
+                              + "CASE WHEN a.type = 2 THEN p.partition_id ELSE p.hobt_id END "
+                              + "WHERE s.name = ? "
+                              + "GROUP BY t.name",
+                          job.catalog);
+                  Map<String, Long> sizes = new HashMap<>();
+                  db.get()
+                      .toSelect(sql)
+                      .argString(schema)
+                      .queryMany(rs -> sizes.put(rs.getStringOrNull(), rs.getLongOrZero()));
+                  return sizes;
+                }));
+  }
+
+  @Override
+  protected String getFingerprint(Database database, String schema, Job job) {
+    // Row counts of heaps and clustered indexes change with the data, modify_date with the table definitions
+    return database
+        .toSelect(
+            String.format(
+                Locale.ROOT,
+                "SELECT COUNT(DISTINCT t.object_id), CONVERT(VARCHAR(23), MAX(t.modify_date), 126), "
+                    + "SUM(CASE WHEN p.index_id IN (0, 1) THEN p.rows ELSE 0 END) FROM [%1$s].sys.tables t "
+                    + "INNER JOIN [%1$s].sys.schemas s ON s.schema_id = t.schema_id "
+                    + "INNER JOIN [%1$s].sys.partitions p ON p.object_id = t.object_id "
+                    + "WHERE s.name = ?",
+                job.catalog))
+        .argString(schema)
+        .queryOneOrNull(
+            rs -> rs.getLongOrZero() + "|" + rs.getStringOrNull() + "|" + rs.getLongOrZero());
+  }
+
+  @Override
+  protected Observable<Query> planQueries(String schema, String tableName, Job job) {
     return Observable.fromCallable(
             () -> {
 //              LOGGER.warn(">>>>>>>>>>>>>> STARTING GET QUERIES <<<<<<<<<");
               String catalog = job.catalog;
-              List<String> columnExclusions = job.columnExclusions;
               long incrementFactor = job.incrementFactor;
+              SchemaCatalog schemaCatalog = getCatalog(schema, job).blockingGet();
               return dbb.transactReturning(
                   db -> {
                     db.get().underlyingConnection().setSchema(schema);
-                    DatabaseMetaData metadata = db.get().underlyingConnection().getMetaData();
 
-                    List<Column> cols =
-                        retrieveColumns(metadata, catalog, schema, tableName, columnExclusions);
+                    List<Column> cols = schemaCatalog.getColumns(tableName);
                     if (cols.stream().noneMatch(Column::isExportable)) {
                       LOGGER.warn("Skipping table {}, no columns are exportable", tableName);
                       return new ArrayList<Query>();
                     }
 
-                    List<SplitTableStrategy> splitTableStrategies =
-                        job.splitTableStrategies.stream()
-                            .filter(
-                                x ->
-                                    x.getTableName().contains(".")
-                                        ? x.getTableName()
-                                            .split("\\.")[1]
-                                            .equalsIgnoreCase(tableName)
-                                        : x.getTableName().equalsIgnoreCase(tableName))
-                            .collect(Collectors.toList());
+                    List<SplitTableStrategy> splitTableStrategies = getSplitTableStrategies(job, tableName);
                     List<String> listQueries = new ArrayList<>();
+                    // Chunks read in key order, so they can be re-split at runtime if they straggle or written in
+                    // pages, keyed by their query
+                    Map<String, KeyRange> keyRanges = new HashMap<>();
                     Table table =
                         new Table(
                             catalog,
                             schema,
                             tableName,
                             cols,
-                            getDbRowCount(db.get(), catalog, schema, tableName),
+                            schemaCatalog.getRowCount(tableName),
                             splitTableStrategies);
                     String columnSql = getColumnSql(job, table);
 
@@ -456,10 +530,23 @@ public class SqlServerDatabaseFns extends DatabaseFns {
                                   return sqlQueries;
                                 });
                             listQueries.addAll(sqlQueries);
+                          } else if (splitTableStrategy.getOperation()
+                              == SplitTableStrategyOperation.hash) {
+                            listQueries.addAll(
+                                createQueriesHash(
+                                    splitTableStrategy, columnSql, catalog, schema, tableName,
+                                    incrementFactor));
+                          } else if (splitTableStrategy.getOperation()
+                              == SplitTableStrategyOperation.auto) {
+                            listQueries.addAll(
+                                createQueriesHistogram(
+                                    db.get(), splitTableStrategy, columnSql, catalog, schema, tableName,
+                                    incrementFactor, keyRanges(keyRanges, cols, splitTableStrategy)));
                           } else if (splitTableStrategy.getKeyDataType() == KeyDataType.date) {
                             listQueries.addAll(
                                 createQueriesDate(
-                                    splitTableStrategy, columnSql, catalog, schema, tableName));
+                                    db.get(), splitTableStrategy, columnSql, catalog, schema, tableName,
+                                    incrementFactor, keyRanges(keyRanges, cols, splitTableStrategy)));
                           } else if (splitTableStrategy.getKeyDataType() == KeyDataType.number) {
                             if (splitTableStrategy.getIncrement() == null
                                 && splitTableStrategy.getOperation()
@@ -470,14 +557,37 @@ public class SqlServerDatabaseFns extends DatabaseFns {
                                       / incrementFactor);
                             listQueries.addAll(
                                 createQueriesNumber(
-                                    splitTableStrategy, columnSql, catalog, schema, tableName));
+                                    splitTableStrategy, columnSql, catalog, schema, tableName,
+                                    keyRanges(keyRanges, cols, splitTableStrategy)));
                           } else if (splitTableStrategy.getKeyDataType() == KeyDataType.string) {
                             listQueries.addAll(
                                 createQueriesString(
                                     splitTableStrategy, columnSql, catalog, schema, tableName));
                           }
                         });
-                    if (splitTableStrategies.isEmpty()) {
+                    long pageRows = config.getLong("chunk.page.rows", 0);
+                    if (pageRows > 0) {
+                      keyRanges.values().stream()
+                          .filter(range -> uniqueKey(cols, range.column))
+                          .forEach(range -> range.setPageRows(pageRows));
+                    }
+                    Partitioning partitioning = getPartitioning(schemaCatalog, tableName);
+                    if (partitioning != null) {
+                      List<String> partitionQueries =
+                          createQueriesPartition(
+                              partitioning, splitTableStrategies, listQueries, keyRanges, columnSql, catalog,
+                              schema, tableName);
+                      listQueries.clear();
+                      listQueries.addAll(partitionQueries);
+                    }
+                    if (splitTableStrategies.isEmpty()
+                        && listQueries.isEmpty()
+                        && job.tablesSplit != null
+                        && job.tablesSplit.contains(schema + "." + tableName)) {
+                      listQueries.addAll(
+                          createQueriesPhysloc(db.get(), columnSql, catalog, schema, tableName));
+                    }
+                    if (splitTableStrategies.isEmpty() && listQueries.isEmpty()) {
                       String sql =
                           String.format(
                               Locale.ROOT,
@@ -511,237 +621,615 @@ public class SqlServerDatabaseFns extends DatabaseFns {
                                     StringUtils.leftPad(
                                         String.valueOf(index.incrementAndGet()), 7, "0"),
                                     "",
-                                    ""))
+                                    "",
+                                    keyRanges.get(query)))
                         .collect(Collectors.toList());
                   });
             })
         .flatMapIterable(l -> l);
   }
 
-  private Long getDbRowCount(Database database, String catalog, String schema, String tableName) {
-    String sql =
+  /**
+   * Straggling chunks can only be re-split if their queries are read in key order
+   */
+  private boolean resplit() {
+    return Double.parseDouble(config.getString("straggler.split.factor", "0")) > 0;
+  }
+
+  /**
+   * Chunks of a strategy are read in key order if they can be re-split at runtime, or written in pages, which needs
+   * a unique key
+   *
+   * @return map to collect the key ranges of the strategy's chunks in, or null to read them in any order
+   */
+  private Map<String, KeyRange> keyRanges(
+      Map<String, KeyRange> keyRanges, List<Column> cols, SplitTableStrategy splitTableStrategy) {
+    return resplit() || (config.getLong("chunk.page.rows", 0) > 0 && uniqueKey(cols, splitTableStrategy.getColumn()))
+        ? keyRanges
+        : null;
+  }
+
+  /**
+   * @return true if the column is the whole primary key, and exported, so the writer can page on it
+   */
+  private static boolean uniqueKey(List<Column> cols, String column) {
+    String key = column.replace("[", "").replace("]", "");
+    List<Column> primaryKey = cols.stream().filter(c -> c.primaryKey).collect(Collectors.toList());
+    return primaryKey.size() == 1 && primaryKey.get(0).name.equalsIgnoreCase(key)
+        && primaryKey.get(0).isExportable();
+  }
+
+  /*
+    ONLY SUPPORTED: splitTableStrategy.getOperation() == SplitTableStrategyOperation.range
+
+    Chunks span a fixed number of hours, days, weeks, months or years, aligned to the start of the unit, with the
+    first and last chunks open-ended. An adaptive strategy sizes its chunks from the rows per day instead.
+  */
+  private List<String> createQueriesDate(
+      Database database,
+      SplitTableStrategy splitTableStrategy,
+      String columns,
+      String catalog,
+      String schema,
+      String tableName,
+      long incrementFactor,
+      Map<String, KeyRange> keyRanges) {
+    String select =
+        String.format(
+            Locale.ROOT,
+            "SELECT %s FROM [%s].[%s].[%s] %s",
+            columns,
+            catalog,
+            schema,
+            tableName,
+            SQL_DECORATOR);
+    if (splitTableStrategy.isAdaptive()) {
+      return createQueriesDateAdaptive(
+          database, splitTableStrategy, select, catalog, schema, tableName, incrementFactor, keyRanges);
+    }
+    if (splitTableStrategy.getIncrement() == null) {
+      throw new IllegalArgumentException(
+          "Date split strategy for " + tableName + " needs an increment, e.g. 1m, or adaptive");
+    }
+    List<Long> cuts = new ArrayList<>();
+    if (splitTableStrategy.getStartRangeDate() != null && splitTableStrategy.getEndRangeDate() != null) {
+      ChronoUnit unit = splitTableStrategy.getIncrementUnit();
+      long increment = splitTableStrategy.getIncrement();
+      if (unit == ChronoUnit.MONTHS && increment % 12 == 0) {
+        // Whole years start on January 1st, as they always have
+        unit = ChronoUnit.YEARS;
+        increment /= 12;
+      }
+      LocalDateTime end = localDateTime(splitTableStrategy.getEndRangeDate().getTime());
+      LocalDateTime cut = startOf(localDateTime(splitTableStrategy.getStartRangeDate().getTime()), unit)
+          .plus(increment, unit);
+      while (!cut.isAfter(end)) {
+        cuts.add(epochMilli(cut));
+        cut = cut.plus(increment, unit);
+      }
+    }
+    List<String> lq = rangeQueries(select, splitTableStrategy.getColumn(), true, cuts, keyRanges);
+    lq.forEach(sqlQuery -> LOGGER.debug("(date) sql is {}", sqlQuery));
+    return lq;
+  }
+
+  /*
+    Counts the rows per day, then merges sparse days and cuts up dense ones into chunks of about the table's rows
+    divided by the increment factor. Rows are assumed to be spread evenly within a day.
+  */
+  private List<String> createQueriesDateAdaptive(
+      Database database,
+      SplitTableStrategy splitTableStrategy,
+      String select,
+      String catalog,
+      String schema,
+      String tableName,
+      long incrementFactor,
+      Map<String, KeyRange> keyRanges) {
+    String column = splitTableStrategy.getColumn();
+    Map<LocalDate, Long> days = new LinkedHashMap<>();
+    boolean[] nulls = new boolean[1];
+    database
+        .toSelect(
+            String.format(
+                Locale.ROOT,
+                "SELECT CONVERT(DATE, %s), COUNT_BIG(*) FROM [%s].[%s].[%s] %s GROUP BY CONVERT(DATE, %s) ORDER BY 1",
+                column,
+                catalog,
+                schema,
+                tableName,
+                SQL_DECORATOR_NON_DATA,
+                column))
+        .queryMany(
+            rs -> {
+              LocalDate day = rs.getLocalDateOrNull();
+              if (day == null) {
+                nulls[0] = true;
+                rs.getLongOrZero();
+              } else {
+                days.put(day, rs.getLongOrZero());
+              }
+              return null;
+            });
+    long total = days.values().stream().mapToLong(Long::longValue).sum();
+    double target = Math.max(1.0, (double) total / Math.max(1, incrementFactor));
+    List<Long> cuts = new ArrayList<>();
+    double rows = 0;
+    for (Map.Entry<LocalDate, Long> day : days.entrySet()) {
+      LocalDateTime start = day.getKey().atStartOfDay();
+      if (day.getValue() >= target) {
+        // A day holding a chunk or more is cut into equal slices of whole minutes
+        if (rows > 0) {
+          addCut(cuts, epochMilli(start), true);
+        }
+        long slices = (long) Math.ceil(day.getValue() / target);
+        long minutes = Math.max(1, 24 * 60 / slices);
+        for (long m = minutes; m < 24 * 60; m += minutes) {
+          addCut(cuts, epochMilli(start.plusMinutes(m)), true);
+        }
+        addCut(cuts, epochMilli(start.plusDays(1)), true);
+        rows = 0;
+      } else {
+        rows += day.getValue();
+        if (rows >= target) {
+          addCut(cuts, epochMilli(start.plusDays(1)), true);
+          rows = 0;
+        }
+      }
+    }
+    List<String> lq = rangeQueries(select, column, true, cuts, keyRanges);
+    if (nulls[0]) {
+      lq.add(select + " where " + column + " IS NULL");
+    }
+    lq.forEach(sqlQuery -> LOGGER.debug("(date) sql is {}", sqlQuery));
+    LOGGER.info("Split {}.{} into {} chunks from {} days of rows", tableName, column, lq.size(), days.size());
+    return lq;
+  }
+
+  private static LocalDateTime startOf(LocalDateTime time, ChronoUnit unit) {
+    switch (unit) {
+      case HOURS:
+        return time.truncatedTo(ChronoUnit.HOURS);
+      case DAYS:
+        return time.truncatedTo(ChronoUnit.DAYS);
+      case WEEKS:
+        return time.toLocalDate().with(DayOfWeek.MONDAY).atStartOfDay();
+      case YEARS:
+        return time.toLocalDate().withDayOfYear(1).atStartOfDay();
+      default:
+        return time.toLocalDate().withDayOfMonth(1).atStartOfDay();
+    }
+  }
+
+  private static LocalDateTime localDateTime(long epochMilli) {
+    return LocalDateTime.ofInstant(Instant.ofEpochMilli(epochMilli), ZoneId.systemDefault());
+  }
+
+  private static long epochMilli(LocalDateTime time) {
+    return time.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+  }
+
+  /**
+   * Queries for the key ranges between cuts, the first and last open-ended, read in key order if the ranges are
+   * collected
+   */
+  private static List<String> rangeQueries(
+      String select, String column, boolean date, List<Long> cuts, Map<String, KeyRange> keyRanges) {
+    List<String> lq = new ArrayList<>();
+    for (int i = 0; i <= cuts.size(); i++) {
+      KeyRange range =
+          new KeyRange(
+              select,
+              column,
+              date,
+              i == 0 ? 0 : cuts.get(i - 1),
+              i == 0,
+              i == cuts.size() ? 0 : cuts.get(i),
+              i == cuts.size());
+      String sqlQuery;
+      if (keyRanges != null) {
+        sqlQuery = range.sql();
+        keyRanges.put(sqlQuery, range);
+      } else {
+        sqlQuery = select + " where " + range.condition();
+      }
+      lq.add(sqlQuery);
+    }
+    return lq;
+  }
+
+  /**
+   * Partition function, partitioning column and partitions of a partitioned table
+   */
+  private static class Partitioning {
+
+    String function;
+    String column;
+    final Map<Integer, Long> rows = new LinkedHashMap<>();
+  }
+
+  /**
+   * @return partitioning of the heap or clustered index, or null if the table is not partitioned
+   */
+  private static Partitioning getPartitioning(SchemaCatalog schemaCatalog, String tableName) {
+    if (schemaCatalog.getPartitionRows(tableName).size() < 2) {
+      return null;
+    }
+    Partitioning partitioning = new Partitioning();
+    partitioning.function = schemaCatalog.getPartitionFunction(tableName);
+    partitioning.column = schemaCatalog.getPartitionColumn(tableName);
+    partitioning.rows.putAll(schemaCatalog.getPartitionRows(tableName));
+    return partitioning;
+  }
+
+  /*
+    Partitioned tables are exported a partition at a time, so each chunk only reads its own partition. Partitions
+    holding more rows than an average chunk of the table's split strategy are sub-split with that strategy: chunks
+    read in key order get a copy of their key range limited to the partition, so they can still be re-split and
+    paged, and other chunks have their condition and-ed with the partition's. A strategy on the partitioning column
+    itself already lines its chunks up with the partitions, so it is kept as is.
+  */
+  private List<String> createQueriesPartition(
+      Partitioning partitioning,
+      List<SplitTableStrategy> splitTableStrategies,
+      List<String> strategyQueries,
+      Map<String, KeyRange> keyRanges,
+      String columns,
+      String catalog,
+      String schema,
+      String tableName) {
+    if (splitTableStrategies.stream().anyMatch(s -> partitioning.column.equalsIgnoreCase(s.getColumn()))) {
+      LOGGER.info("Split strategy of {} is on its partitioning column {}, keeping its chunks", tableName,
+          partitioning.column);
+      return strategyQueries;
+    }
+    String select =
         String.format(
             Locale.ROOT,
-            "SELECT sum(p.rows) AS TotalRowCount "
-                + "FROM %1$s.sys.tables t "
-                + "INNER JOIN %1$s.sys.partitions p ON t.object_id = p.OBJECT_ID and p.index_id IN (0, 1) "
-                + "left join %1$s.sys.schemas s on s.schema_id = t.schema_id "
-                + "WHERE s.name = '%2$s' "
-                + "AND t.NAME = '%3$s'",
+            "SELECT %s FROM [%s].[%s].[%s] %s",
+            columns,
             catalog,
             schema,
-            tableName);
-    SqlSelect sqlSelect = database.toSelect(sql);
-    return sqlSelect.query(
-        rs -> {
-          Long rc = null;
-          while (rs.next()) {
-            return rs.getLongOrNull();
+            tableName,
+            SQL_DECORATOR);
+    long tableRows = partitioning.rows.values().stream().mapToLong(Long::longValue).sum();
+    long chunkRows = strategyQueries.isEmpty() ? Long.MAX_VALUE : tableRows / strategyQueries.size();
+    // Chunks not read in key order are built as the select and their where clause
+    boolean splittable =
+        strategyQueries.stream().allMatch(q -> keyRanges.containsKey(q) || q.startsWith(select + " where "));
+    List<String> lq = new ArrayList<>();
+    partitioning.rows.forEach(
+        (partition, rows) -> {
+          String condition =
+              String.format(
+                  Locale.ROOT, "[%s].$PARTITION.[%s]([%s]) = %d", catalog, partitioning.function,
+                  partitioning.column, partition);
+          if (rows > chunkRows && splittable) {
+            for (String q : strategyQueries) {
+              KeyRange range = keyRanges.get(q);
+              if (range != null) {
+                KeyRange partitionRange = range.within(condition);
+                String sql = partitionRange.sql();
+                lq.add(sql);
+                keyRanges.put(sql, partitionRange);
+              } else {
+                lq.add(select + " where " + condition + " AND (" + q.substring(select.length() + 7) + ")");
+              }
+            }
+          } else {
+            // Empty partitions are kept too, they cost next to nothing to read and may have been filled since
+            lq.add(select + " where " + condition);
           }
-          return rc;
         });
+    LOGGER.info("Split {} into {} chunks over {} partitions of {}", tableName, lq.size(), partitioning.rows.size(),
+        partitioning.function);
+    return lq;
   }
 
   /*
-    ONLY SUPPORTED: splitTableStrategy.getOperation() == SplitTableStrategyOperation.range
+    For tables given with --split-table, which need no split key. Rows are chunked by their physical location, the
+    file and page of %%physloc%%, with page ranges holding about the same number of allocated in-row pages. The
+    locator cannot be sought, so every chunk still scans the table, but only returns its own rows. There is one chunk
+    per writer thread, so the scans run side by side and share their reads.
   */
-  private List<String> createQueriesDate(
+  private List<String> createQueriesPhysloc(
+      Database database, String columns, String catalog, String schema, String tableName) {
+    List<String> lq = new ArrayList<>();
+    long chunks = config.getInteger("threads.max", config.getInteger("threads", 1));
+    if (chunks < 2) {
+      return lq;
+    }
+    List<Long> cuts;
+    try {
+      // First page of each tile, as file id << 32 | page id
+      cuts =
+          database
+              .toSelect(
+                  "SELECT MIN(CONVERT(BIGINT, file_id) * 4294967296 + page_id) FROM ("
+                      + "SELECT allocated_page_file_id AS file_id, allocated_page_page_id AS page_id, "
+                      + "NTILE(?) OVER (ORDER BY allocated_page_file_id, allocated_page_page_id) AS tile "
+                      + "FROM sys.dm_db_database_page_allocations(DB_ID(?), OBJECT_ID(?), NULL, NULL, 'LIMITED') "
+                      + "WHERE is_allocated = 1 AND is_iam_page = 0 AND allocation_unit_type = 1 "
+                      + "AND index_id IN (0, 1)) p "
+                      + "GROUP BY tile ORDER BY tile")
+              .argLong(chunks)
+              .argString(catalog)
+              .argString(String.format(Locale.ROOT, "[%s].[%s].[%s]", catalog, schema, tableName))
+              .queryLongs();
+    } catch (DatabaseException e) {
+      LOGGER.warn("Could not read the page allocations of {}, exporting it in one query: {}", tableName,
+          e.getMessage());
+      return lq;
+    }
+    if (cuts.size() < 2) {
+      return lq;
+    }
+    String select =
+        String.format(
+            Locale.ROOT,
+            "SELECT %s FROM [%s].[%s].[%s] %s",
+            columns,
+            catalog,
+            schema,
+            tableName,
+            SQL_DECORATOR);
+    // Bytes 5-6 of %%physloc%% hold the file id and bytes 1-4 the page id, both little-endian
+    String locator =
+        "CONVERT(BIGINT, SUBSTRING(%%physloc%%, 6, 1) + SUBSTRING(%%physloc%%, 5, 1) "
+            + "+ SUBSTRING(%%physloc%%, 4, 1) + SUBSTRING(%%physloc%%, 3, 1) "
+            + "+ SUBSTRING(%%physloc%%, 2, 1) + SUBSTRING(%%physloc%%, 1, 1))";
+    for (int i = 1; i <= cuts.size(); i++) {
+      // The first chunk also takes pages allocated before its first one since the allocations were read
+      KeyRange range =
+          new KeyRange(
+              select,
+              locator,
+              false,
+              cuts.get(i - 1),
+              i == 1,
+              i == cuts.size() ? 0 : cuts.get(i),
+              i == cuts.size());
+      String sqlQuery = select + " where " + range.condition();
+      lq.add(sqlQuery);
+      LOGGER.debug("(physloc) sql is {}", sqlQuery);
+    }
+    LOGGER.info("Split {} into {} chunks by page range", tableName, lq.size());
+    return lq;
+  }
+
+  /*
+    Buckets of a checksum of the key columns, for keys of any type including composite keys. Every row falls in
+    exactly one bucket, NULLs included, and buckets are about the same size unless a few key values dominate.
+  */
+  private List<String> createQueriesHash(
       SplitTableStrategy splitTableStrategy,
       String columns,
       String catalog,
       String schema,
-      String tableName) {
+      String tableName,
+      long incrementFactor) {
     List<String> lq = new ArrayList<>();
-    long increment = splitTableStrategy.getIncrement();
-    boolean continueLoop = true;
+    long buckets =
+        splitTableStrategy.getIncrement() != null ? splitTableStrategy.getIncrement() : incrementFactor;
+    // CHECKSUM can be negative, and ABS overflows on its smallest value
+    String bucket =
+        String.format(
+            Locale.ROOT,
+            "(CHECKSUM(%s) %% %d + %d) %% %d",
+            String.join(", ", splitTableStrategy.getColumns()),
+            buckets,
+            buckets,
+            buckets);
+    for (long i = 0; i < buckets; i++) {
+      String sqlQuery =
+          String.format(
+              Locale.ROOT,
+              "SELECT %s FROM [%s].[%s].[%s] %s where %s = %d",
+              columns,
+              catalog,
+              schema,
+              tableName,
+              SQL_DECORATOR,
+              bucket,
+              i);
+      lq.add(sqlQuery);
+      LOGGER.debug("(hash) sql is {}", sqlQuery);
+    }
+    return lq;
+  }
 
-    int startRangeYear =
-        LocalDate.parse(
-                new SimpleDateFormat(DATE_FORMAT).format(splitTableStrategy.getStartRangeDate()))
-            .getYear();
-    int endRangeYear =
-        LocalDate.parse(
-                new SimpleDateFormat(DATE_FORMAT).format(splitTableStrategy.getEndRangeDate()))
-            .getYear();
-
-    long currentStartYear = startRangeYear;
-    if (increment == 12) {
-      long currentEndYear = startRangeYear + (increment / 12);
-      String currentOperator = "<";
-      String partialDateString = "-01-01 00::00::00'";
-      do {
-        String sqlQuery = null;
-
-        // where report_dt report_dt < '2015-01-01 00:00:00' (first year)
-        // where report_dt >= '2015-01-01 00:00:00' and report_dt < '2016-01-01 00:00:00' (middle
-        // year)
-        // where report_dt >= '2021-01-01 00:00:00'
-        if (currentStartYear == startRangeYear) {
-          sqlQuery =
-              String.format(
-                  Locale.ROOT,
-                  "SELECT %s FROM [%s].[%s].[%s] %s where %s %s '%s%s",
-                  columns,
-                  catalog,
-                  schema,
-                  tableName,
-                  SQL_DECORATOR,
-                  splitTableStrategy.getColumn(),
-                  currentOperator,
-                  currentEndYear,
-                  partialDateString);
-        } else if (currentStartYear > endRangeYear) {
-          continueLoop = false;
-        } else if (currentStartYear == endRangeYear) {
-          currentOperator = ">=";
-          sqlQuery =
-              String.format(
-                  Locale.ROOT,
-                  "SELECT %s FROM [%s].[%s].[%s] %s where %s %s '%s%s",
-                  columns,
-                  catalog,
-                  schema,
-                  tableName,
-                  SQL_DECORATOR,
-                  splitTableStrategy.getColumn(),
-                  currentOperator,
-                  currentStartYear,
-                  partialDateString);
-          continueLoop = false;
-        } else {
-          String currentOperator1 = ">=";
-          String currentOperator2 = "<";
-          sqlQuery =
-              String.format(
-                  Locale.ROOT,
-                  "SELECT %s FROM [%s].[%s].[%s] %s where %s %s '%s%s and %s %s '%s%s",
-                  columns,
-                  catalog,
-                  schema,
-                  tableName,
-                  SQL_DECORATOR,
-                  splitTableStrategy.getColumn(),
-                  currentOperator1,
-                  currentStartYear,
-                  partialDateString,
-                  splitTableStrategy.getColumn(),
-                  currentOperator2,
-                  currentEndYear,
-                  partialDateString);
-        }
-        currentStartYear = currentEndYear;
-        currentEndYear += (increment / 12);
-        lq.add(sqlQuery);
-        LOGGER.debug("(date) sql is {}", sqlQuery);
+  /*
+    ONLY SUPPORTED: splitTableStrategy.getKeyDataType() == KeyDataType.number or KeyDataType.date
 
-      } while (continueLoop);
+    Chunks hold roughly the same number of rows according to the statistics histogram of the column, rather than
+    the same span of values. Rows outside the histogram, e.g. added since statistics were last updated, fall into the
+    open-ended first and last chunks.
+  */
+  private List<String> createQueriesHistogram(
+      Database database,
+      SplitTableStrategy splitTableStrategy,
+      String columns,
+      String catalog,
+      String schema,
+      String tableName,
+      long incrementFactor,
+      Map<String, KeyRange> keyRanges) {
+    if (splitTableStrategy.getKeyDataType() != KeyDataType.number
+        && splitTableStrategy.getKeyDataType() != KeyDataType.date) {
+      throw new IllegalArgumentException(
+          "auto split only supports number and date keys: " + splitTableStrategy);
     }
-    // monthly
-    else if (increment < 12) {
-      int startRangeMonth =
-          LocalDate.parse(
-                  new SimpleDateFormat(DATE_FORMAT).format(splitTableStrategy.getStartRangeDate()))
-              .getMonthValue();
-      int endRangeMonth =
-          LocalDate.parse(
-                  new SimpleDateFormat(DATE_FORMAT).format(splitTableStrategy.getEndRangeDate()))
-              .getMonthValue();
-
-      long currentEndYear = startRangeYear;
-
-      long currentStartMonth = startRangeMonth;
-      long currentEndMonth = startRangeMonth + increment;
-      if (currentEndMonth > 12) {
-        currentEndMonth = currentEndMonth - 12;
-        currentEndYear += 1;
+    boolean date = splitTableStrategy.getKeyDataType() == KeyDataType.date;
+    String column = splitTableStrategy.getColumn();
+    long chunks =
+        splitTableStrategy.getIncrement() != null ? splitTableStrategy.getIncrement() : incrementFactor;
+    String select =
+        String.format(
+            Locale.ROOT,
+            "SELECT %s FROM [%s].[%s].[%s] %s",
+            columns,
+            catalog,
+            schema,
+            tableName,
+            SQL_DECORATOR);
+
+    List<Long[]> steps = readHistogram(database, catalog, schema, tableName, column, date);
+    List<Long> cuts;
+    boolean nulls = steps.stream().anyMatch(step -> step[0] == null);
+    if (steps.stream().anyMatch(step -> step[0] != null)) {
+      cuts = histogramCuts(steps, chunks, date);
+    } else {
+      // No usable statistics, fall back to splitting the range of values evenly
+      LOGGER.warn("No statistics histogram on {}.{}, splitting its values evenly", tableName, column);
+      Long[] range =
+          database
+              .toSelect(
+                  String.format(
+                      Locale.ROOT,
+                      "SELECT %s, %s FROM [%s].[%s].[%s] %s",
+                      date ? "MIN(" + column + ")" : "CONVERT(BIGINT, MIN(" + column + "))",
+                      date ? "MAX(" + column + ")" : "CONVERT(BIGINT, MAX(" + column + "))",
+                      catalog,
+                      schema,
+                      tableName,
+                      SQL_DECORATOR_NON_DATA))
+              .queryOneOrNull(rs -> date ? dateRange(rs.getDateOrNull(), rs.getDateOrNull())
+                  : new Long[] {rs.getLongOrNull(), rs.getLongOrNull()});
+      cuts = new ArrayList<>();
+      if (range != null && range[0] != null && range[1] != null) {
+        long width = (range[1] - range[0]) / chunks;
+        for (long i = 1; i < chunks && width > 0; i++) {
+          addCut(cuts, range[0] + width * i, date);
+        }
       }
+      nulls = true;
+    }
 
-      String partialDateString = "-01 00::00::00'";
-      do {
-        String sqlQuery = null;
-
-        // where report_dt report_dt < '2015-01-01 00:00:00' (first year)
-        // where report_dt >= '2015-01-01 00:00:00' and report_dt < '2016-01-01 00:00:00' (middle
-        // year)
-        // where report_dt >= '2021-01-01 00:00:00'
-        if (currentStartYear == startRangeYear && currentStartMonth == startRangeMonth) {
-          String currentOperator = "<";
-          sqlQuery =
-              String.format(
-                  Locale.ROOT,
-                  "SELECT %s FROM [%s].[%s].[%s] %s where %s %s '%s-%s%s",
-                  columns,
-                  catalog,
-                  schema,
-                  tableName,
-                  SQL_DECORATOR,
-                  splitTableStrategy.getColumn(),
-                  currentOperator,
-                  currentStartYear,
-                  StringUtils.leftPad(String.valueOf(currentEndMonth), 2, "0"),
-                  partialDateString);
-        } else if ((currentStartYear > endRangeYear)
-            || (currentStartYear == endRangeYear && currentStartMonth > endRangeMonth)) {
-          continueLoop = false;
-        } else if (currentStartYear == endRangeYear && currentStartMonth == endRangeMonth) {
-          String currentOperator = ">=";
-          sqlQuery =
-              String.format(
-                  Locale.ROOT,
-                  "SELECT %s FROM [%s].[%s].[%s] %s where %s %s '%s-%s%s",
-                  columns,
-                  catalog,
-                  schema,
-                  tableName,
-                  SQL_DECORATOR,
-                  splitTableStrategy.getColumn(),
-                  currentOperator,
-                  currentStartYear,
-                  StringUtils.leftPad(String.valueOf(currentStartMonth), 2, "0"),
-                  partialDateString);
-          continueLoop = false;
-        } else {
-          String currentOperator1 = ">=";
-          String currentOperator2 = "<";
-          sqlQuery =
+    List<String> lq = rangeQueries(select, column, date, cuts, keyRanges);
+    lq.forEach(sqlQuery -> LOGGER.debug("(auto) sql is {}", sqlQuery));
+    if (nulls) {
+      lq.add(select + " where " + column + " IS NULL");
+    }
+    LOGGER.info("Split {}.{} into {} chunks of roughly equal row counts", tableName, column, lq.size());
+    return lq;
+  }
+
+  /**
+   * Reads the statistics histogram of a column, preferring the clustered index, then other indexes, then column
+   * statistics. Requires SQL Server 2016 SP1 CU2 or later, on older servers nothing is returned.
+   *
+   * @return steps in key order, each the upper key (null for the step of NULL values, dates as epoch milliseconds),
+   *     the rows between it and the previous key, and the rows equal to it
+   */
+  private List<Long[]> readHistogram(
+      Database database, String catalog, String schema, String tableName, String column, boolean date) {
+    List<Long[]> steps = new ArrayList<>();
+    String object = String.format(Locale.ROOT, "[%s].[%s].[%s]", catalog, schema, tableName);
+    try {
+      Long statsId =
+          database
+              .toSelect(
+                  String.format(
+                      Locale.ROOT,
+                      "SELECT TOP 1 s.stats_id FROM [%1$s].sys.stats s "
+                          + "INNER JOIN [%1$s].sys.stats_columns sc ON sc.object_id = s.object_id "
+                          + "AND sc.stats_id = s.stats_id AND sc.stats_column_id = 1 "
+                          + "INNER JOIN [%1$s].sys.columns c ON c.object_id = sc.object_id AND c.column_id = sc.column_id "
+                          + "WHERE s.object_id = OBJECT_ID(?) AND c.name = ? "
+                          + "ORDER BY CASE WHEN s.stats_id = 1 THEN 0 ELSE 1 END, s.auto_created, s.stats_id",
+                      catalog))
+              .argString(object)
+              .argString(column)
+              .queryLongOrNull();
+      if (statsId == null) {
+        return steps;
+      }
+      database
+          .toSelect(
               String.format(
                   Locale.ROOT,
-                  "SELECT %s FROM [%s].[%s].[%s] %s where %s %s '%s-%s%s and %s %s '%s-%s%s",
-                  columns,
-                  catalog,
-                  schema,
-                  tableName,
-                  SQL_DECORATOR,
-                  splitTableStrategy.getColumn(),
-                  currentOperator1,
-                  currentStartYear,
-                  StringUtils.leftPad(String.valueOf(currentStartMonth), 2, "0"),
-                  partialDateString,
-                  splitTableStrategy.getColumn(),
-                  currentOperator2,
-                  currentEndYear,
-                  StringUtils.leftPad(String.valueOf(currentEndMonth), 2, "0"),
-                  partialDateString);
-        }
-        currentStartMonth = currentEndMonth;
-        currentEndMonth += increment;
-        if (currentEndMonth > 12) {
-          currentEndMonth = currentEndMonth - 12;
-          currentEndYear += 1;
-        }
-        if (currentStartMonth > 12) {
-          currentStartMonth = currentStartMonth - 12;
-          currentStartYear += 1;
-        }
-        if (sqlQuery != null) {
-          lq.add(sqlQuery);
+                  "SELECT CONVERT(%s, h.range_high_key), CONVERT(BIGINT, h.range_rows), CONVERT(BIGINT, h.equal_rows) "
+                      + "FROM [%s].sys.dm_db_stats_histogram(OBJECT_ID(?), ?) h ORDER BY h.step_number",
+                  date ? "DATETIME2" : "BIGINT",
+                  catalog))
+          .argString(object)
+          .argLong(statsId)
+          .queryMany(
+              rs -> {
+                Long key;
+                if (date) {
+                  Date value = rs.getDateOrNull();
+                  key = value == null ? null : value.getTime();
+                } else {
+                  key = rs.getLongOrNull();
+                }
+                steps.add(new Long[] {key, rs.getLongOrZero(), rs.getLongOrZero()});
+                return null;
+              });
+    } catch (DatabaseException e) {
+      LOGGER.warn("Could not read the statistics histogram on {}.{}: {}", tableName, column, e.getMessage());
+      steps.clear();
+    }
+    return steps;
+  }
+
+  /**
+   * Picks keys that cut the histogram into chunks of roughly equal row counts. Values within a step are assumed to
+   * be spread evenly, as the optimizer does, so a step holding more rows than a chunk is cut between its keys.
+   */
+  static List<Long> histogramCuts(List<Long[]> steps, long chunks, boolean date) {
+    long total = steps.stream().filter(step -> step[0] != null).mapToLong(step -> step[1] + step[2]).sum();
+    double target = Math.max(1.0, (double) total / Math.max(1, chunks));
+    List<Long> cuts = new ArrayList<>();
+    Long previous = null;
+    double rows = 0;
+    for (Long[] step : steps) {
+      if (step[0] == null) {
+        continue;
+      }
+      long key = step[0];
+      double between = step[1];
+      if (previous != null && rows + between >= target && key - previous > 1) {
+        // Rows between the previous key and this one, cut into as many pieces as they fill
+        long span = key - previous;
+        double offset = target - rows;
+        while (offset < between) {
+          addCut(cuts, previous + (long) (span * (offset / between)), date);
+          offset += target;
         }
-        LOGGER.debug("(date) sql is {}", sqlQuery);
+        rows = between - (offset - target);
+      } else {
+        rows += between;
+      }
+      if (rows >= target || (rows > 0 && step[2] >= target)) {
+        addCut(cuts, key, date);
+        rows = 0;
+      }
+      rows += step[2];
+      if (rows >= target) {
+        // A single key holding a chunk's worth of rows gets a chunk to itself
+        addCut(cuts, date ? key - Math.floorMod(key, 60_000L) + 60_000L : key + 1, date);
+        rows = 0;
+      }
+      previous = key;
+    }
+    return cuts;
+  }
 
-      } while (continueLoop);
+  /**
+   * Adds a cut after the previous one, date cuts rounded down to a whole minute like {@link KeyRange} splits
+   */
+  static void addCut(List<Long> cuts, long cut, boolean date) {
+    if (date) {
+      cut -= Math.floorMod(cut, 60_000L);
+    }
+    if (cuts.isEmpty() || cut > cuts.get(cuts.size() - 1)) {
+      cuts.add(cut);
     }
+  }
 
-    return lq;
+  private static Long[] dateRange(Date min, Date max) {
+    return new Long[] {min == null ? null : min.getTime(), max == null ? null : max.getTime()};
   }
 
   /*
@@ -752,7 +1240,8 @@ public class SqlServerDatabaseFns extends DatabaseFns {
       String columns,
       String catalog,
       String schema,
-      String tableName) {
+      String tableName,
+      Map<String, KeyRange> keyRanges) {
     List<String> lq = new ArrayList<>();
     long increment = splitTableStrategy.getIncrement();
     boolean continueLoop = true;
@@ -793,6 +1282,26 @@ public class SqlServerDatabaseFns extends DatabaseFns {
                 splitTableStrategy.getOperation(),
                 currentStart,
                 currentEnd);
+        if (keyRanges != null) {
+          KeyRange range =
+              new KeyRange(
+                  String.format(
+                      Locale.ROOT,
+                      "SELECT %s FROM [%s].[%s].[%s] %s",
+                      columns,
+                      catalog,
+                      schema,
+                      tableName,
+                      SQL_DECORATOR),
+                  splitTableStrategy.getColumn(),
+                  false,
+                  currentStart,
+                  false,
+                  currentEnd + 1,
+                  false);
+          sqlQuery = range.sql();
+          keyRanges.put(sqlQuery, range);
+        }
         currentStart = currentEnd + 1;
         currentEnd = Math.min(currentStart + increment, endRange);
         if (currentStart > endRange) continueLoop = false;
@@ -3,14 +3,24 @@ package com.github.susom.starr.dbtoavro.jobs.impl;
 import com.github.susom.database.Config;
 import com.github.susom.starr.dbtoavro.entity.AvroFile;
 import com.github.susom.starr.dbtoavro.entity.Job;
+import com.github.susom.starr.dbtoavro.entity.Query;
 import com.github.susom.starr.dbtoavro.functions.AvroFns;
+import com.github.susom.starr.dbtoavro.functions.AvroWriter;
 import com.github.susom.starr.dbtoavro.functions.DatabaseFns;
+import com.github.susom.starr.dbtoavro.functions.ExportMetrics;
 import com.github.susom.starr.dbtoavro.functions.impl.FnFactory;
 import com.github.susom.starr.dbtoavro.jobs.Exporter;
 import com.github.susom.starr.dbtoavro.jobs.Loader;
+import com.github.susom.starr.dbtoavro.util.CheckpointJournal;
 import com.github.susom.database.DatabaseProvider;
 import io.reactivex.Observable;
 import io.reactivex.schedulers.Schedulers;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
@@ -22,6 +32,9 @@ public class AvroExporter implements Exporter {
 
   private static final Logger LOGGER = LoggerFactory.getLogger(AvroExporter.class);
 
+  private static final int MAX_RETRY_COUNT = 4;
+  private static final int RETRY_DELAY = 5;
+
   private final Config config;
   private DatabaseProvider.Builder dbb;
 
@@ -33,15 +46,27 @@ public class AvroExporter implements Exporter {
   @Override
   public Observable<AvroFile> run(Job job, Loader loader) {
 
+    CheckpointJournal journal;
+    try {
+      journal = new CheckpointJournal(job.destination, job.resume);
+    } catch (IOException ex) {
+      return Observable.error(ex);
+    }
+
     int threads = config.getIntegerOrThrow("threads");
-    ExecutorService writerPool = Executors.newFixedThreadPool(threads);
+    ExportScheduler writerPool = new ExportScheduler(threads);
+    ExportMetrics metrics = new ExportMetrics();
+    ConcurrencyController controller = new ConcurrencyController(writerPool, metrics,
+        config.getInteger("threads.min", threads), config.getInteger("threads.max", threads));
     ExecutorService metadataPool = Executors.newFixedThreadPool(threads);
-    LOGGER.info("Starting export using {} threads", threads);
-    final int maxRetryCount = 4;
-    final int delay = 5;
+    int compressionThreads = config.getInteger("avro.compression.threads", Runtime.getRuntime().availableProcessors());
+    ExecutorService compressionPool = Executors.newFixedThreadPool(compressionThreads);
+    LOGGER.info("Starting export using {} threads, {} compression threads", threads, compressionThreads);
+    StragglerMonitor monitor = new StragglerMonitor(writerPool,
+        Double.parseDouble(config.getString("straggler.split.factor", "0")));
     return loader.run(job)
       .flatMapObservable(database -> {
-        AvroFns avroFns = FnFactory.getAvroFns(database.flavor, job, dbb);
+        AvroFns avroFns = FnFactory.getAvroFns(database.flavor, job, dbb, compressionPool, metrics);
         DatabaseFns dbFns = FnFactory.getDatabaseFns(database.flavor, config, dbb);
         return
           dbFns.getSchemas(job.catalog)
@@ -59,30 +84,77 @@ public class AvroExporter implements Exporter {
                     || job.tableExclusions.stream()
                     .noneMatch(re -> (schema + "." + table).matches("(?i:" + re + ")"))
                 )
-                .flatMap(tableName ->
-                  dbFns.getQueries(schema, tableName, job)
-                  .flatMap(query -> avroFns.saveAsAvro(query)
-                    .subscribeOn(Schedulers.from(writerPool))
-                    .toObservable()
-                    //.onErrorReturnItem(new AvroFile(query, false))
-                    .retryWhen(errors -> //this retry is for saveAsAvro
-                      errors
-                            .zipWith(Observable.range(1, maxRetryCount), (error, retryCount) -> retryCount)
-                            .flatMap(retryCount -> Observable.timer((long) Math.pow(delay, retryCount), TimeUnit.SECONDS, Schedulers.from(writerPool)) )
-                      )
+                .toList()
+                .flatMapObservable(tables -> dbFns.getTableSizes(schema, job)
+                  .onErrorReturn(error -> {
+                    LOGGER.warn("Unable to get table sizes for schema {}, exporting in catalog order", schema, error);
+                    return Collections.emptyMap();
+                  })
+                  .flatMapObservable(sizes -> Observable.fromIterable(largestFirst(job, schema, tables, sizes))
+                    .flatMap(tableName ->
+                      dbFns.getQueries(schema, tableName, job)
+                      .flatMap(query -> {
+                        AvroFile resumed = journal.completed(query);
+                        if (resumed != null) {
+                          return Observable.just(resumed);
+                        }
+                        long weight = prioritized(job, schema, tableName) ? Long.MAX_VALUE
+                          : sizes.getOrDefault(tableName, 0L) / Math.max(1, query.tableQueryCount);
+                        return export(query, weight, avroFns, journal, writerPool, monitor);
+                      })
+                      .subscribeOn(Schedulers.from(metadataPool))
+                      .retryWhen(errors -> //this retry is for getQueries
+                        errors
+                              .zipWith(Observable.range(1, MAX_RETRY_COUNT), (error, retryCount) -> retryCount)
+                              .flatMap(retryCount -> Observable.timer((long) Math.pow(RETRY_DELAY, retryCount), TimeUnit.SECONDS, Schedulers.computation()))
+                       )
+                    ,false, threads * 2) // don't make too many outstanding observables
                   )
-                  .subscribeOn(Schedulers.from(metadataPool))
-                  .retryWhen(errors -> //this retry is for getQueries
-                    errors
-                          .zipWith(Observable.range(1, maxRetryCount), (error, retryCount) -> retryCount)
-                          .flatMap(retryCount -> Observable.timer((long) Math.pow(delay, retryCount), TimeUnit.SECONDS, Schedulers.from(writerPool)))
-                   )
-                ,false, threads * 2) // don't make too many outstanding observables
+                )
             );
         }
       )
+      .doFinally(monitor::shutdown)
+      .doFinally(controller::shutdown)
       .doOnComplete(writerPool::shutdown)
-      .doOnComplete(metadataPool::shutdown);
+      .doOnComplete(metadataPool::shutdown)
+      .doOnComplete(compressionPool::shutdown)
+      .doFinally(journal::close);
+  }
+
+  /**
+   * Exports a chunk on the writer threads, along with any chunks split off it if it turns out to be a straggler
+   */
+  private static Observable<AvroFile> export(Query query, long weight, AvroFns avroFns, CheckpointJournal journal,
+      ExportScheduler writerPool, StragglerMonitor monitor) {
+    Observable<AvroFile> export = writerPool
+      .schedule(weight, monitor.timed(query, avroFns.saveAsAvro(query)).doOnSuccess(journal::record))
+      .toObservable()
+      //.onErrorReturnItem(new AvroFile(query, false))
+      .retryWhen(errors -> //this retry is for saveAsAvro
+        errors
+              .zipWith(Observable.range(1, MAX_RETRY_COUNT), (error, retryCount) -> retryCount)
+              .flatMap(retryCount -> Observable.timer((long) Math.pow(RETRY_DELAY, retryCount), TimeUnit.SECONDS, Schedulers.computation()) )
+        )
+      // Pages kept for retries are only left over if the chunk was given up on
+      .doFinally(() -> AvroWriter.discardPages(query.keyRange));
+    return monitor.splittable(query, export, split -> export(split, weight, avroFns, journal, writerPool, monitor));
+  }
+
+  /**
+   * Orders tables so the biggest are started first, after any tables the job explicitly prioritizes
+   */
+  private static List<String> largestFirst(Job job, String schema, List<String> tables, Map<String, Long> sizes) {
+    List<String> ordered = new ArrayList<>(tables);
+    ordered.sort(Comparator
+      .comparing((String table) -> !prioritized(job, schema, table))
+      .thenComparing(table -> sizes.getOrDefault(table, 0L), Comparator.reverseOrder()));
+    LOGGER.info("Exporting {} tables in schema {}, largest first", ordered.size(), schema);
+    return ordered;
+  }
+
+  private static boolean prioritized(Job job, String schema, String table) {
+    return job.tablePriorities.contains(schema + "." + table);
   }
 
 }
@@ -0,0 +1,127 @@
+package com.github.susom.starr.dbtoavro.jobs.impl;
+
+import com.github.susom.starr.dbtoavro.functions.ExportMetrics;
+import io.reactivex.Observable;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.schedulers.Schedulers;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Sizes the writer pool to what the database can actually deliver, additive increase, multiplicative decrease. While
+ * work is waiting for a thread, one writer is added per interval as long as the last one paid off in bytes fetched
+ * per second. When widening made throughput drop, or queries start taking much longer to return their first row, the
+ * database is taken to be overloaded and a quarter of the writers are shed.
+ */
+class ConcurrencyController {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(ConcurrencyController.class);
+
+  private static final long INTERVAL_SECONDS = 30;
+
+  /**
+   * Fraction of the writers kept when the database is overloaded
+   */
+  private static final double DECREASE = 0.75;
+
+  /**
+   * Throughput gain the last added writer must bring before another is added
+   */
+  private static final double GAIN = 1.05;
+
+  /**
+   * Throughput loss after adding a writer that counts as overload
+   */
+  private static final double LOSS = 0.9;
+
+  /**
+   * Rise in average time to first row, over the best interval seen, that counts as overload
+   */
+  private static final double LATENCY_RISE = 2.0;
+
+  /**
+   * Times to first row below this are never treated as overload
+   */
+  private static final double MIN_LATENCY_MS = 1000;
+
+  private final ExportScheduler scheduler;
+  private final ExportMetrics metrics;
+  private final int minThreads;
+  private final int maxThreads;
+  private ExportMetrics.Snapshot last;
+  private double lastBytesPerSecond;
+  private double bestFirstRowMs = Double.MAX_VALUE;
+  private boolean widened;
+  private Disposable timer;
+
+  /**
+   * @param scheduler writer pool to size
+   * @param metrics totals of all writers
+   * @param minThreads fewest writers
+   * @param maxThreads most writers, nothing is adjusted if this is not above the minimum
+   */
+  ConcurrencyController(ExportScheduler scheduler, ExportMetrics metrics, int minThreads, int maxThreads) {
+    this.scheduler = scheduler;
+    this.metrics = metrics;
+    this.minThreads = minThreads;
+    this.maxThreads = maxThreads;
+    if (minThreads < maxThreads) {
+      LOGGER.info("Adjusting writer threads between {} and {}", minThreads, maxThreads);
+      last = metrics.snapshot();
+      timer = Observable.interval(INTERVAL_SECONDS, TimeUnit.SECONDS, Schedulers.computation())
+          .subscribe(tick -> adjust());
+    }
+  }
+
+  void shutdown() {
+    if (timer != null) {
+      timer.dispose();
+    }
+  }
+
+  private void adjust() {
+    ExportMetrics.Snapshot now = metrics.snapshot();
+    double seconds = (now.nanoTime - last.nanoTime) / 1e9;
+    double rowsPerSecond = (now.rows - last.rows) / seconds;
+    double bytesPerSecond = (now.bytes - last.bytes) / seconds;
+    long queries = now.queries - last.queries;
+    double firstRowMs = queries == 0 ? 0 : (now.firstRowNanos - last.firstRowNanos) / 1e6 / queries;
+    last = now;
+    if (bytesPerSecond == 0 && queries == 0) {
+      // Nothing was fetched, e.g. all writers are waiting on table metadata, so there is nothing to judge by
+      return;
+    }
+
+    int threads = scheduler.getThreads();
+    int next = threads;
+    String reason = null;
+    if (queries > 0 && firstRowMs > Math.max(MIN_LATENCY_MS, LATENCY_RISE * bestFirstRowMs)) {
+      reason = String.format(Locale.ROOT, "time to first row rose to %.0fms", firstRowMs);
+    } else if (widened && bytesPerSecond < LOSS * lastBytesPerSecond) {
+      reason = "throughput fell after adding a writer";
+    }
+    if (reason != null) {
+      next = Math.max(minThreads, Math.min(threads - 1, (int) (threads * DECREASE)));
+    } else if (scheduler.hasWaiting() && (!widened || bytesPerSecond >= GAIN * lastBytesPerSecond)) {
+      next = Math.min(maxThreads, threads + 1);
+      reason = "work is waiting";
+    }
+    if (queries > 0) {
+      bestFirstRowMs = Math.min(bestFirstRowMs, firstRowMs);
+    }
+    widened = next > threads;
+    lastBytesPerSecond = bytesPerSecond;
+
+    if (next != threads) {
+      LOGGER.info("{} rows/s, {} KiB/s, {} writer threads, now {} because {}", (long) rowsPerSecond,
+          (long) bytesPerSecond / 1024, threads, next, reason);
+      scheduler.setThreads(next);
+    } else {
+      LOGGER.debug("{} rows/s, {} KiB/s, {} writer threads", (long) rowsPerSecond, (long) bytesPerSecond / 1024,
+          threads);
+    }
+  }
+
+}
@@ -0,0 +1,133 @@
+package com.github.susom.starr.dbtoavro.jobs.impl;
+
+import io.reactivex.Single;
+import io.reactivex.SingleObserver;
+import io.reactivex.disposables.Disposable;
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs exports on the writer threads, heaviest first. Work waiting for a thread is kept in a priority queue rather
+ * than a FIFO, so whenever a writer frees up it takes the largest outstanding chunk of any table (longest processing
+ * time first), which keeps big tables from becoming a long tail after everything else has finished.
+ */
+class ExportScheduler {
+
+  private static final Comparator<Runnable> HEAVIEST_FIRST = Comparator
+      .comparingLong((Runnable r) -> r instanceof Task ? ((Task) r).weight : 0L).reversed()
+      .thenComparingLong(r -> r instanceof Task ? ((Task) r).sequence : Long.MAX_VALUE);
+
+  private final ThreadPoolExecutor pool;
+  private final AtomicLong sequence = new AtomicLong();
+
+  ExportScheduler(int threads) {
+    this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+        new PriorityBlockingQueue<>(64, HEAVIEST_FIRST));
+  }
+
+  /**
+   * Queues work to run on a writer thread when subscribed. Work of equal weight runs in the order it was scheduled.
+   * Disposing the single removes the work from the queue, or stops it if it is already running.
+   *
+   * @param weight estimated size of the work, such as bytes to export
+   * @param work export to run, subscribed to on the writer thread
+   * @return single that completes with the result of the work
+   */
+  <T> Single<T> schedule(long weight, Single<T> work) {
+    return Single.create(emitter -> {
+      Task task = new Task(weight, sequence.getAndIncrement(), () -> {
+        if (emitter.isDisposed()) {
+          return;
+        }
+        Thread writer = Thread.currentThread();
+        AtomicBoolean running = new AtomicBoolean(true);
+        work.subscribe(new SingleObserver<T>() {
+          @Override
+          public void onSubscribe(Disposable disposable) {
+            // Once running, cancelling disposes the work and interrupts its blocking reads and writes
+            emitter.setCancellable(() -> {
+              disposable.dispose();
+              if (running.compareAndSet(true, false)) {
+                writer.interrupt();
+              }
+            });
+          }
+
+          @Override
+          public void onSuccess(T result) {
+            if (running.compareAndSet(true, false)) {
+              emitter.onSuccess(result);
+            }
+          }
+
+          @Override
+          public void onError(Throwable error) {
+            if (running.compareAndSet(true, false)) {
+              emitter.tryOnError(error);
+            }
+          }
+        });
+      });
+      emitter.setCancellable(() -> pool.remove(task));
+      pool.execute(task);
+    });
+  }
+
+  /**
+   * Changes the number of writer threads. When narrowing, exports already running finish before their threads go.
+   */
+  synchronized void setThreads(int threads) {
+    if (threads > pool.getMaximumPoolSize()) {
+      pool.setMaximumPoolSize(threads);
+      pool.setCorePoolSize(threads);
+    } else {
+      pool.setCorePoolSize(threads);
+      pool.setMaximumPoolSize(threads);
+    }
+  }
+
+  int getThreads() {
+    return pool.getMaximumPoolSize();
+  }
+
+  /**
+   * @return true if any work is waiting for a writer thread
+   */
+  boolean hasWaiting() {
+    return !pool.getQueue().isEmpty();
+  }
+
+  /**
+   * @return writer threads with nothing to do, zero while any work is waiting for a thread
+   */
+  int idleThreads() {
+    return pool.getQueue().isEmpty() ? Math.max(0, pool.getMaximumPoolSize() - pool.getActiveCount()) : 0;
+  }
+
+  void shutdown() {
+    pool.shutdown();
+  }
+
+  private static class Task implements Runnable {
+
+    final long weight;
+    final long sequence;
+    private final Runnable work;
+
+    Task(long weight, long sequence, Runnable work) {
+      this.weight = weight;
+      this.sequence = sequence;
+      this.work = work;
+    }
+
+    @Override
+    public void run() {
+      work.run();
+    }
+  }
+
+}
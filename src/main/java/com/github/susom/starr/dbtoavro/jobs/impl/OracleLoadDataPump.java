@@ -65,10 +65,11 @@ public class OracleLoadDataPump implements Loader {
                   .doOnNext(line -> LOGGER.info(line.getData()))
                   .ignoreElements() // TODO: record output
               )
-              .andThen(docker.impdp(containerId, job.backupFiles)
+              .andThen(docker.impdp(containerId, job)
                   .doOnNext(line -> LOGGER.info(line.getData()))
                   .ignoreElements() // TODO: record output
               )
+              .andThen(job.leanRestore ? db.createSplitIndexes(job) : Completable.complete())
               .andThen(docker.execSqlFile(containerId, job.postSql)
                   .doOnNext(line -> LOGGER.info(line.getData()))
                   .ignoreElements() // TODO: record output
@@ -0,0 +1,187 @@
+package com.github.susom.starr.dbtoavro.jobs.impl;
+
+import com.github.susom.starr.dbtoavro.entity.AvroFile;
+import com.github.susom.starr.dbtoavro.entity.KeyRange;
+import com.github.susom.starr.dbtoavro.entity.Query;
+import io.reactivex.Observable;
+import io.reactivex.Single;
+import io.reactivex.disposables.Disposable;
+import io.reactivex.functions.Function;
+import io.reactivex.schedulers.Schedulers;
+import io.reactivex.subjects.Subject;
+import io.reactivex.subjects.UnicastSubject;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Watches running chunks and re-splits stragglers. Chunk boundaries are fixed when the queries are planned, so a
+ * skewed key can leave one chunk holding much of a table. A chunk still running well past the median time of the
+ * finished chunks of its table has the rest of its key range split into new chunks for idle writer threads, and its
+ * own writer stops at the first split point.
+ *
+ * <p>Only chunks with a {@link KeyRange}, which are read in key order, can be split.
+ */
+class StragglerMonitor {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(StragglerMonitor.class);
+
+  private static final long CHECK_SECONDS = 15;
+
+  /**
+   * Chunks finishing quicker than this are never worth splitting
+   */
+  private static final long MIN_ELAPSED_MS = 60_000;
+
+  /**
+   * Finished chunks of a table needed before its median time is trusted
+   */
+  private static final int MIN_FINISHED = 3;
+
+  private final ExportScheduler scheduler;
+  private final double factor;
+  private final Map<Query, Long> started = new HashMap<>();
+  private final Map<Query, Subject<Query>> splits = new HashMap<>();
+  private final Map<Query, AtomicInteger> splitCounts = new HashMap<>();
+  private final Map<String, List<Long>> finished = new HashMap<>();
+  private Disposable timer;
+
+  /**
+   * @param scheduler writer threads
+   * @param factor a chunk is a straggler once it has run this many times the median for its table, zero disables
+   */
+  StragglerMonitor(ExportScheduler scheduler, double factor) {
+    this.scheduler = scheduler;
+    this.factor = factor;
+    if (factor > 0) {
+      timer = Observable.interval(CHECK_SECONDS, TimeUnit.SECONDS, Schedulers.computation())
+          .subscribe(tick -> check());
+    }
+  }
+
+  /**
+   * Times an export from when it starts writing
+   *
+   * @param query chunk being exported
+   * @param work export, subscribed to on the writer thread
+   * @return the export, timed
+   */
+  Single<AvroFile> timed(Query query, Single<AvroFile> work) {
+    return work
+        .doOnSubscribe(d -> started(query))
+        .doOnSuccess(avroFile -> finished(query))
+        .doFinally(() -> stopped(query));
+  }
+
+  /**
+   * Exports a chunk along with any chunks split off it while it runs
+   *
+   * @param query chunk to export
+   * @param export export of the chunk itself, including retries
+   * @param exportSplit export of a chunk split off this one
+   * @return results of the chunk and its splits
+   */
+  Observable<AvroFile> splittable(Query query, Observable<AvroFile> export,
+      Function<Query, Observable<AvroFile>> exportSplit) {
+    if (factor <= 0 || query.keyRange == null) {
+      return export;
+    }
+    return Observable.defer(() -> {
+      Subject<Query> subject = UnicastSubject.create();
+      synchronized (this) {
+        splits.put(query, subject);
+        splitCounts.put(query, new AtomicInteger());
+      }
+      return Observable.merge(export.doFinally(() -> done(query)), subject.flatMap(exportSplit));
+    });
+  }
+
+  void shutdown() {
+    if (timer != null) {
+      timer.dispose();
+    }
+  }
+
+  private synchronized void started(Query query) {
+    started.put(query, System.nanoTime());
+  }
+
+  private synchronized void finished(Query query) {
+    Long start = started.get(query);
+    if (start != null) {
+      finished.computeIfAbsent(table(query), t -> new ArrayList<>())
+          .add(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+  }
+
+  private synchronized void stopped(Query query) {
+    started.remove(query);
+  }
+
+  /**
+   * Called once a chunk and all its retries are over. Splitting happens under the same lock, so no split can be lost
+   * after the chunk's splits are completed.
+   */
+  private synchronized void done(Query query) {
+    query.keyRange.finish();
+    splitCounts.remove(query);
+    Subject<Query> subject = splits.remove(query);
+    if (subject != null) {
+      subject.onComplete();
+    }
+  }
+
+  private synchronized void check() {
+    int idle = scheduler.idleThreads();
+    if (idle == 0) {
+      return;
+    }
+    long now = System.nanoTime();
+    List<Map.Entry<Query, Long>> running = new ArrayList<>(started.entrySet());
+    running.sort(Map.Entry.comparingByValue());
+    for (Map.Entry<Query, Long> entry : running) {
+      Query query = entry.getKey();
+      Subject<Query> subject = splits.get(query);
+      List<Long> times = finished.get(table(query));
+      if (subject == null || times == null || times.size() < MIN_FINISHED) {
+        continue;
+      }
+      long elapsed = TimeUnit.NANOSECONDS.toMillis(now - entry.getValue());
+      long median = median(times);
+      if (elapsed < MIN_ELAPSED_MS || elapsed < factor * median) {
+        continue;
+      }
+      List<KeyRange> ranges = query.keyRange.split(idle);
+      if (ranges.isEmpty()) {
+        continue;
+      }
+      LOGGER.info("Chunk {} of {} has run {}s against a median of {}s, splitting off {} chunks, now {}",
+          query.id, table(query), elapsed / 1000, median / 1000, ranges.size(), query.keyRange);
+      AtomicInteger count = splitCounts.get(query);
+      for (KeyRange range : ranges) {
+        subject.onNext(new Query(query.table, range.sql(), query.id + "." + count.incrementAndGet(), "", "", range));
+      }
+      idle -= ranges.size();
+      if (idle <= 0) {
+        return;
+      }
+    }
+  }
+
+  private static String table(Query query) {
+    return query.getSchema() + "." + query.getName();
+  }
+
+  private static long median(List<Long> times) {
+    List<Long> sorted = new ArrayList<>(times);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+}
@@ -0,0 +1,182 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.util;
+
+import com.github.susom.starr.dbtoavro.entity.KeyRange;
+import com.github.susom.starr.dbtoavro.entity.Query;
+import com.github.susom.starr.dbtoavro.entity.SchemaCatalog;
+import com.github.susom.starr.dbtoavro.entity.Table;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Catalogs and query plans of previous runs against the same database, so a rerun can skip introspection and
+ * planning. Everything is stored per schema along with a fingerprint of the schema, cheap to compute, that changes
+ * when its tables do. Entries whose fingerprint no longer matches are ignored. Query plans are also tied to the job
+ * options that shape them.
+ *
+ * <p>The snapshot is an append-only file of JSON lines, compacted to the latest entry of each schema and table when
+ * opened.
+ */
+public class CatalogSnapshot {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CatalogSnapshot.class);
+
+  /**
+   * Format of the entries, older or newer entries are ignored
+   */
+  public static final int VERSION = 4;
+
+  private final Gson gson = new GsonBuilder().disableHtmlEscaping().create();
+  private final Path path;
+  private final Map<String, Entry> entries = new LinkedHashMap<>();
+
+  /**
+   * Opens the snapshot, creating it if needed
+   *
+   * @param path snapshot file
+   */
+  public CatalogSnapshot(Path path) throws IOException {
+    this.path = path;
+    if (Files.exists(path)) {
+      for (String line : Files.readAllLines(path, StandardCharsets.UTF_8)) {
+        try {
+          Entry entry = gson.fromJson(line, Entry.class);
+          if (entry != null && entry.version == VERSION && entry.schema != null && entry.fingerprint != null) {
+            entries.put(entry.key(), entry);
+          }
+        } catch (JsonParseException ex) {
+          LOGGER.warn("Ignoring unreadable catalog snapshot entry in {}", path);
+        }
+      }
+      Path compacted = path.resolveSibling(path.getFileName() + ".tmp");
+      Files.write(compacted, entries.values().stream().map(gson::toJson).collect(Collectors.toList()),
+          StandardCharsets.UTF_8);
+      Files.move(compacted, path, StandardCopyOption.REPLACE_EXISTING);
+      LOGGER.info("Catalog snapshot {} has {} entries", path, entries.size());
+    }
+  }
+
+  /**
+   * @return the catalog of a schema, or null if there is none for this fingerprint
+   */
+  public synchronized SchemaCatalog getCatalog(String schema, String fingerprint) {
+    Entry entry = entries.get(schema);
+    return entry != null && fingerprint.equals(entry.fingerprint) ? entry.catalog : null;
+  }
+
+  public synchronized void putCatalog(String schema, String fingerprint, SchemaCatalog catalog) {
+    Entry entry = new Entry();
+    entry.schema = schema;
+    entry.fingerprint = fingerprint;
+    entry.catalog = catalog;
+    append(entry);
+  }
+
+  /**
+   * Rebuilds the queries planned for a table by a previous run
+   *
+   * @param table table the queries are for, its query count is set from the plan
+   * @param fingerprint current fingerprint of the schema
+   * @param planKey job options that shape the plan
+   * @return queries, or null if the table needs to be planned
+   */
+  public synchronized List<Query> getQueries(Table table, String fingerprint, String planKey) {
+    Entry entry = entries.get(table.getSchema() + "." + table.getName());
+    if (entry == null || !fingerprint.equals(entry.fingerprint) || !planKey.equals(entry.planKey)
+        || entry.queries == null) {
+      return null;
+    }
+    table.setQueryCount(entry.queryCount);
+    return entry.queries.stream()
+        .map(q -> new Query(table, q.query, q.id, q.startRowid, q.endRowid, q.keyRange))
+        .collect(Collectors.toList());
+  }
+
+  public synchronized void putQueries(Table table, String fingerprint, String planKey, List<Query> queries) {
+    Entry entry = new Entry();
+    entry.schema = table.getSchema();
+    entry.table = table.getName();
+    entry.fingerprint = fingerprint;
+    entry.planKey = planKey;
+    entry.queryCount = table.getQueryCount();
+    entry.queries = queries.stream().map(PlannedQuery::new).collect(Collectors.toList());
+    append(entry);
+  }
+
+  private void append(Entry entry) {
+    entries.put(entry.key(), entry);
+    try {
+      Files.write(path, (gson.toJson(entry) + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    } catch (IOException ex) {
+      throw new UncheckedIOException(ex);
+    }
+  }
+
+  /**
+   * One line of the snapshot, either the catalog of a schema or the queries of a table
+   */
+  private static class Entry {
+
+    int version = VERSION;
+    String schema;
+    String table;
+    String fingerprint;
+    String planKey;
+    SchemaCatalog catalog;
+    int queryCount;
+    List<PlannedQuery> queries;
+
+    String key() {
+      return table == null ? schema : schema + "." + table;
+    }
+  }
+
+  private static class PlannedQuery {
+
+    String query;
+    String id;
+    String startRowid;
+    String endRowid;
+    KeyRange keyRange;
+
+    PlannedQuery(Query query) {
+      this.query = query.query;
+      this.id = query.id;
+      this.startRowid = query.getStartRowid();
+      this.endRowid = query.getEndRowid();
+      this.keyRange = query.keyRange;
+    }
+  }
+
+}
@@ -0,0 +1,187 @@
+/*
+ * Copyright 2019 The Board of Trustees of The Leland Stanford Junior University.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ *
+ */
+
+package com.github.susom.starr.dbtoavro.util;
+
+import com.github.susom.starr.dbtoavro.entity.AvroFile;
+import com.github.susom.starr.dbtoavro.entity.Checkpoint;
+import com.github.susom.starr.dbtoavro.entity.LocalDateTimeDeserializer;
+import com.github.susom.starr.dbtoavro.entity.LocalDateTimeSerializer;
+import com.github.susom.starr.dbtoavro.entity.Query;
+import com.github.susom.starr.dbtoavro.entity.Statistics;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonParseException;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Append-only journal of completely exported queries, kept in the destination directory. Each query is recorded
+ * after its files have been renamed to their final names, so when a crashed or cancelled job is resumed every query
+ * found in the journal can be skipped.
+ */
+public class CheckpointJournal implements Closeable {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointJournal.class);
+
+  public static final String FILENAME = "checkpoint.jsonl";
+
+  private final Gson gson = new GsonBuilder()
+      .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeSerializer())
+      .registerTypeAdapter(LocalDateTime.class, new LocalDateTimeDeserializer())
+      .disableHtmlEscaping()
+      .create();
+
+  private final Map<String, Checkpoint> completed = new HashMap<>();
+  private final FileOutputStream out;
+
+  /**
+   * Opens the journal in the destination directory
+   *
+   * @param destination avro destination directory
+   * @param resume keep the queries completed by a previous run, otherwise the journal is started over
+   */
+  public CheckpointJournal(String destination, boolean resume) throws IOException {
+    Path path = Paths.get(destination, FILENAME);
+    boolean partialLine = false;
+    if (resume && Files.exists(path)) {
+      byte[] journal = Files.readAllBytes(path);
+      partialLine = journal.length > 0 && journal[journal.length - 1] != '\n';
+      for (String line : new String(journal, StandardCharsets.UTF_8).split("\n")) {
+        try {
+          Checkpoint checkpoint = gson.fromJson(line, Checkpoint.class);
+          if (checkpoint != null && checkpoint.key != null && checkpoint.queryHash != null
+              && checkpoint.files != null) {
+            completed.put(checkpoint.key, checkpoint);
+          }
+        } catch (JsonParseException ex) {
+          // The last line is cut short if the previous run died while writing it
+          LOGGER.warn("Ignoring unreadable checkpoint {}", line);
+        }
+      }
+      LOGGER.info("Resuming with {} completed queries from {}", completed.size(), path);
+    }
+    this.out = new FileOutputStream(path.toFile(), resume);
+    if (partialLine) {
+      out.write('\n');
+    }
+  }
+
+  /**
+   * Looks up a query completed by a previous run. The query text must be unchanged and all of its files must still
+   * be present. If the query needs to be exported again, the files of any chunks split off it at runtime by the
+   * previous run are deleted, since the query covers their rows again.
+   *
+   * @param query query about to be exported
+   * @return the previous result, or null if the query needs to be exported
+   */
+  public synchronized AvroFile completed(Query query) {
+    AvroFile resumed = resume(query);
+    if (resumed == null) {
+      discardSplits(Checkpoint.key(query));
+    }
+    return resumed;
+  }
+
+  private AvroFile resume(Query query) {
+    Checkpoint checkpoint = completed.get(Checkpoint.key(query));
+    if (checkpoint == null || !checkpoint.queryHash.equals(Checkpoint.hash(query.query))) {
+      return null;
+    }
+    long totalBytes = 0;
+    for (String file : checkpoint.files) {
+      File f = new File(file);
+      if (!f.isFile()) {
+        LOGGER.info("Exporting {} again, file {} is missing", checkpoint.key, file);
+        return null;
+      }
+      totalBytes += f.length();
+    }
+    if (totalBytes != checkpoint.totalBytes) {
+      LOGGER.info("Exporting {} again, files have changed size", checkpoint.key);
+      return null;
+    }
+
+    LOGGER.info("Skipping {}, completed by a previous run", checkpoint.key);
+    List<String> files = checkpoint.files;
+    Statistics statistics = new Statistics(
+        "Resumed",
+        query.getName(),
+        query.tableQueryCount,
+        query.id,
+        files.size(),
+        checkpoint.startTime,
+        checkpoint.endTime,
+        Duration.between(checkpoint.startTime, checkpoint.endTime).getSeconds(),
+        checkpoint.totalBytes,
+        checkpoint.exportRowCount,
+        query.table.getDbRowCount(),
+        query.query);
+    return new AvroFile(query, files, checkpoint.exportTimeMs, checkpoint.totalBytes, checkpoint.exportRowCount,
+        statistics);
+  }
+
+  private void discardSplits(String key) {
+    Iterator<Checkpoint> iterator = completed.values().iterator();
+    while (iterator.hasNext()) {
+      Checkpoint checkpoint = iterator.next();
+      if (checkpoint.key.startsWith(key + ".")) {
+        LOGGER.info("Deleting {}, it will be exported again as part of {}", checkpoint.key, key);
+        for (String file : checkpoint.files) {
+          try {
+            Files.deleteIfExists(Paths.get(file));
+          } catch (IOException ex) {
+            throw new UncheckedIOException(ex);
+          }
+        }
+        iterator.remove();
+      }
+    }
+  }
+
+  /**
+   * Records a completed query. The line is synced to disk before returning.
+   *
+   * @param avroFile result of the export
+   */
+  public synchronized void record(AvroFile avroFile) throws IOException {
+    byte[] line = (gson.toJson(new Checkpoint(avroFile)) + "\n").getBytes(StandardCharsets.UTF_8);
+    out.write(line);
+    out.getFD().sync();
+  }
+
+  @Override
+  public synchronized void close() throws IOException {
+    out.close();
+  }
+
+}
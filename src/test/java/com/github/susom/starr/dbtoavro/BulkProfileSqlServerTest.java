@@ -0,0 +1,103 @@
+package com.github.susom.starr.dbtoavro;
+
+import static org.junit.Assert.assertEquals;
+
+import com.github.susom.starr.dbtoavro.functions.AvroWriter;
+import com.github.susom.starr.dbtoavro.functions.CodecSelector;
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import org.junit.Assume;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Rows/s of a table exported with and without the SQL Server bulk profile. Only runs given a database to create the
+ * table in, for example a local container:
+ *
+ * <pre>
+ * docker run -e ACCEPT_EULA=Y -e SA_PASSWORD=... -p 1433:1433 mcr.microsoft.com/mssql/server:2017-latest
+ * mvn test -Dtest=BulkProfileSqlServerTest \
+ *   -Dsqlserver.benchmark.url='jdbc:sqlserver://localhost:1433;databaseName=tempdb;user=sa;password=...'
+ * </pre>
+ */
+public class BulkProfileSqlServerTest {
+
+  private static final Logger LOGGER = LoggerFactory.getLogger(BulkProfileSqlServerTest.class);
+
+  private static final String TABLE = "dbo.d2a_bulk_profile_benchmark";
+
+  private static final int RUNS = 3;
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  @Test
+  public void bulkProfileRowsPerSecond() throws Exception {
+    String url = System.getProperty("sqlserver.benchmark.url");
+    Assume.assumeTrue("Set sqlserver.benchmark.url to run the benchmark", url != null);
+    int rows = Integer.getInteger("sqlserver.benchmark.rows", 100000);
+
+    try (Connection connection = DriverManager.getConnection(url);
+        Statement statement = connection.createStatement()) {
+      statement.execute("IF OBJECT_ID('" + TABLE + "') IS NOT NULL DROP TABLE " + TABLE);
+      statement.execute("CREATE TABLE " + TABLE + " (id BIGINT NOT NULL PRIMARY KEY, code VARCHAR(20), "
+          + "amount DECIMAL(18, 2), created DATETIME2, note VARCHAR(MAX))");
+      // Notes of 1 to 6 KB, so some rows take more than one packet
+      statement.execute("INSERT INTO " + TABLE + " SELECT TOP (" + rows + ") n, CONCAT('CODE', n % 997), "
+          + "n % 100000 / 100.0, DATEADD(MINUTE, n, '2010-01-01'), "
+          + "REPLICATE(CONVERT(VARCHAR(MAX), 'x'), 1000 + n % 5000) "
+          + "FROM (SELECT ROW_NUMBER() OVER (ORDER BY (SELECT NULL)) n "
+          + "FROM sys.all_columns a CROSS JOIN sys.all_columns b) t");
+    }
+    ExecutorService compressionPool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+    try {
+      // Alternated, so neither is favoured by what the server has cached
+      double[] plain = new double[RUNS];
+      double[] profiled = new double[RUNS];
+      for (int i = 0; i < RUNS; i++) {
+        plain[i] = rowsPerSecond(url, compressionPool, rows);
+        profiled[i] = rowsPerSecond(JobRunner.withBulkProfile(url), compressionPool, rows);
+      }
+      LOGGER.info(String.format(Locale.ROOT, "%d rows, median of %d runs: %.0f rows/s without the bulk profile, "
+          + "%.0f rows/s with it (%+.1f%%)", rows, RUNS, median(plain), median(profiled),
+          (median(profiled) / median(plain) - 1) * 100));
+    } finally {
+      compressionPool.shutdown();
+      try (Connection connection = DriverManager.getConnection(url);
+          Statement statement = connection.createStatement()) {
+        statement.execute("DROP TABLE " + TABLE);
+      }
+    }
+  }
+
+  /**
+   * Exports the table the way a chunk is exported, with the default fetch size and codec
+   */
+  private double rowsPerSecond(String url, ExecutorService compressionPool, int rows) throws Exception {
+    AvroWriter writer = new AvroWriter(CodecSelector.fromString("snappy"), compressionPool, 2000, 0);
+    String path = new File(folder.newFolder(), "benchmark.avro").getPath();
+    try (Connection connection = DriverManager.getConnection(url)) {
+      long start = System.nanoTime();
+      Map<String, Long> files = writer.write(connection, "SELECT * FROM " + TABLE, path, "dbo", "benchmark");
+      double seconds = (System.nanoTime() - start) / 1e9;
+      assertEquals(rows, files.values().stream().mapToLong(Long::longValue).sum());
+      return rows / seconds;
+    }
+  }
+
+  private static double median(double[] values) {
+    double[] sorted = values.clone();
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+}
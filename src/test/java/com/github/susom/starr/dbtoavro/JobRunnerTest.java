@@ -0,0 +1,23 @@
+package com.github.susom.starr.dbtoavro;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class JobRunnerTest {
+
+  @Test
+  public void bulkProfileIsAppendedToTheUrl() {
+    assertEquals("jdbc:sqlserver://db:1433;databaseName=clarity;responseBuffering=adaptive;packetSize=32767;"
+            + "selectMethod=direct",
+        JobRunner.withBulkProfile("jdbc:sqlserver://db:1433;databaseName=clarity"));
+    assertEquals("jdbc:sqlserver://db:1433;responseBuffering=adaptive;packetSize=32767;selectMethod=direct",
+        JobRunner.withBulkProfile("jdbc:sqlserver://db:1433;"));
+  }
+
+  @Test
+  public void settingsInTheUrlAreKept() {
+    assertEquals("jdbc:sqlserver://db:1433;PacketSize = 8000;selectMethod=cursor;responseBuffering=adaptive",
+        JobRunner.withBulkProfile("jdbc:sqlserver://db:1433;PacketSize = 8000;selectMethod=cursor"));
+  }
+}
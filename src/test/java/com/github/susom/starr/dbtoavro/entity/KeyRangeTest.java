@@ -0,0 +1,119 @@
+package com.github.susom.starr.dbtoavro.entity;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.junit.Test;
+
+public class KeyRangeTest {
+
+  private static final String SELECT = "SELECT [id], [name] FROM [db].[dbo].[t] WITH (NOLOCK)";
+
+  private static KeyRange range(long lo, boolean openLo, long hi, boolean openHi) {
+    return new KeyRange(SELECT, "id", false, lo, openLo, hi, openHi);
+  }
+
+  @Test
+  public void sqlBoundsTheRange() {
+    assertEquals(SELECT + " where id >= 10 AND id < 20 ORDER BY id", range(10, false, 20, false).sql());
+    assertEquals(SELECT + " where id < 20 ORDER BY id", range(0, true, 20, false).sql());
+    assertEquals(SELECT + " where id >= 10 ORDER BY id", range(10, false, 0, true).sql());
+    assertEquals("1 = 1", range(0, true, 0, true).condition());
+  }
+
+  @Test
+  public void splitHandsOffTheRestOfTheRange() {
+    KeyRange range = range(0, false, 100, true);
+    range.restart();
+    assertTrue(range.advance(10));
+    List<KeyRange> ranges = range.split(2);
+    // From key 11, the first key not yet read, in three parts of 29
+    assertEquals(2, ranges.size());
+    assertEquals("id >= 40 AND id < 69", ranges.get(0).condition());
+    assertEquals("id >= 69", ranges.get(1).condition());
+    assertEquals("id >= 0 AND id < 40", range.condition());
+    assertTrue(range.isSplit());
+    assertTrue(range.advance(39));
+    assertFalse(range.advance(40));
+  }
+
+  @Test
+  public void splitNeedsARunningWriterAndRoomToCut() {
+    KeyRange range = range(0, false, 100, false);
+    assertTrue(range.split(2).isEmpty());
+    range.restart();
+    assertTrue(range.advance(98));
+    assertTrue(range.split(2).isEmpty());
+    range.finish();
+    assertTrue(range.split(2).isEmpty());
+    assertFalse(range.isSplit());
+    // Date ranges are not cut finer than a minute
+    KeyRange dates = new KeyRange(SELECT, "created", true, 0, false, 90_000, false);
+    dates.restart();
+    assertTrue(dates.split(1).isEmpty());
+  }
+
+  @Test
+  public void splitRangesKeepThePageSize() {
+    KeyRange range = range(0, false, 1000, false);
+    range.setPageRows(100);
+    range.restart();
+    for (KeyRange split : range.split(3)) {
+      assertEquals(100, split.getPageRows());
+    }
+  }
+
+  @Test
+  public void pagesResumeFromTheFirstKeyAfterThem() {
+    KeyRange range = range(0, false, 1000, false);
+    range.setPageRows(100);
+    assertEquals(range.sql(), range.resumeSql());
+    range.restart();
+    range.page(Collections.singletonMap("t-001.avro", 100L), 1, 250);
+    Map<String, Long> files = new LinkedHashMap<>();
+    files.put("t-002.avro", 60L);
+    files.put("t-003.avro", 40L);
+    range.page(files, 3, 500);
+    assertEquals(3, range.getPages().size());
+    assertEquals(Long.valueOf(40), range.getPages().get("t-003.avro"));
+    assertEquals(3, range.getLastPart());
+    assertEquals(SELECT + " where id >= 500 AND id < 1000 ORDER BY id", range.resumeSql());
+    // A retry picks up where the pages end, so only the rest of the range is split off
+    range.restart();
+    List<KeyRange> ranges = range.split(1);
+    assertEquals("id >= 750 AND id < 1000", ranges.get(0).condition());
+    range.clearPages();
+    assertEquals(Collections.emptyMap(), range.getPages());
+    assertEquals(0, range.getLastPart());
+    assertEquals(range.sql(), range.resumeSql());
+  }
+
+  @Test
+  public void filteredRangesKeepTheirFilterWhenSplitAndResumed() {
+    KeyRange range = range(0, false, 1000, false);
+    range.setPageRows(100);
+    KeyRange partition = range.within("$PARTITION.pf(id) = 2");
+    assertEquals(SELECT + " where $PARTITION.pf(id) = 2 AND id >= 0 AND id < 1000 ORDER BY id", partition.sql());
+    assertEquals(100, partition.getPageRows());
+    assertEquals("$PARTITION.pf(id) = 2", range(0, true, 0, true).within("$PARTITION.pf(id) = 2").condition());
+    partition.restart();
+    List<KeyRange> ranges = partition.split(1);
+    assertEquals("$PARTITION.pf(id) = 2 AND id >= 500 AND id < 1000", ranges.get(0).condition());
+    partition.page(Collections.singletonMap("t-001.avro", 100L), 1, 250);
+    assertEquals(SELECT + " where $PARTITION.pf(id) = 2 AND id >= 250 AND id < 500 ORDER BY id", partition.resumeSql());
+    // The original range is left as it was
+    assertEquals("id >= 0 AND id < 1000", range.condition());
+  }
+
+  @Test
+  public void dateRangesAreNotPaged() {
+    KeyRange range = new KeyRange(SELECT, "created", true, 0, false, 86_400_000, false);
+    range.setPageRows(100);
+    assertEquals(0, range.getPageRows());
+  }
+}
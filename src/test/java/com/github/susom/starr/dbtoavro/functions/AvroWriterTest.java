@@ -0,0 +1,193 @@
+package com.github.susom.starr.dbtoavro.functions;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.github.susom.starr.dbtoavro.entity.KeyRange;
+import java.io.File;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import org.apache.avro.file.DataFileReader;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.commons.lang.StringUtils;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AvroWriterTest {
+
+  private static final String SELECT = "SELECT id, payload FROM t";
+
+  /**
+   * Four rows fill a block
+   */
+  private static final String PAYLOAD = StringUtils.repeat("x", AvroWriter.BLOCK_SIZE / 4);
+
+  /**
+   * Two blocks fit a file
+   */
+  private static final long SPLIT_BYTES = AvroWriter.BLOCK_SIZE * 5L / 2;
+
+  private static final Pattern LOWER_BOUND = Pattern.compile("id >= (\\d+)");
+
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private final List<String> queries = new ArrayList<>();
+
+  /**
+   * Connection whose queries return ids from the lower bound of the query to the end of the table, one per row, and
+   * fail when the given id is reached
+   */
+  private Connection connection(int rows, long failAt) {
+    return proxy(Connection.class, (method, args) -> {
+      if (method.equals("createStatement")) {
+        return statement(rows, failAt);
+      }
+      throw new UnsupportedOperationException(method);
+    });
+  }
+
+  private Statement statement(int rows, long failAt) {
+    return proxy(Statement.class, (method, args) -> {
+      switch (method) {
+        case "setFetchSize":
+        case "cancel":
+        case "close":
+          return null;
+        case "executeQuery":
+          String sql = (String) args[0];
+          queries.add(sql);
+          Matcher matcher = LOWER_BOUND.matcher(sql);
+          return resultSet(matcher.find() ? Long.parseLong(matcher.group(1)) : 0, rows, failAt);
+        default:
+          throw new UnsupportedOperationException(method);
+      }
+    });
+  }
+
+  private static ResultSet resultSet(long from, int rows, long failAt) {
+    ResultSetMetaData metadata = proxy(ResultSetMetaData.class, (method, args) -> {
+      switch (method) {
+        case "getColumnCount":
+          return 2;
+        case "getColumnLabel":
+          return (int) args[0] == 1 ? "id" : "payload";
+        case "getColumnType":
+          return (int) args[0] == 1 ? Types.BIGINT : Types.VARCHAR;
+        default:
+          throw new UnsupportedOperationException(method);
+      }
+    });
+    long[] id = {from - 1};
+    return proxy(ResultSet.class, (method, args) -> {
+      switch (method) {
+        case "next":
+          id[0]++;
+          if (id[0] == failAt) {
+            throw new SQLException("Connection reset");
+          }
+          return id[0] < rows;
+        case "getLong":
+          return id[0];
+        case "getString":
+          return PAYLOAD;
+        case "wasNull":
+          return false;
+        case "getMetaData":
+          return metadata;
+        case "close":
+          return null;
+        default:
+          throw new UnsupportedOperationException(method);
+      }
+    });
+  }
+
+  @SuppressWarnings("unchecked")
+  private static <T> T proxy(Class<T> type, Handler handler) {
+    return (T) Proxy.newProxyInstance(AvroWriterTest.class.getClassLoader(), new Class<?>[] {type},
+        (proxy, method, args) -> handler.invoke(method.getName(), args));
+  }
+
+  private interface Handler {
+
+    Object invoke(String method, Object[] args) throws Exception;
+  }
+
+  private static List<Long> ids(File file) throws Exception {
+    List<Long> ids = new ArrayList<>();
+    try (DataFileReader<GenericRecord> reader = new DataFileReader<>(file, new GenericDatumReader<>())) {
+      for (GenericRecord record : reader) {
+        ids.add((Long) record.get("id"));
+      }
+    }
+    return ids;
+  }
+
+  private File part(int part) {
+    return new File(folder.getRoot(), "t-" + StringUtils.leftPad(String.valueOf(part), 3, "0") + ".avro");
+  }
+
+  @Test
+  public void resumedPagesKeepEveryRowOnceWhenFilesAlsoRollOnSize() throws Exception {
+    AvroWriter writer = new AvroWriter(CodecSelector.fromString("null"), null, 100, SPLIT_BYTES);
+    String path = new File(folder.getRoot(), "t-%{PART}.avro").getPath();
+    KeyRange range = new KeyRange(SELECT, "id", false, 0, false, 50, false);
+    range.setPageRows(20);
+
+    // Files roll every 8 rows, so the first page of 20 rows spans three files, and the failure comes after the
+    // second page has already rolled a file on size
+    try {
+      writer.write(connection(50, 37), range.sql(), path, "db", "t", range);
+      fail("Expected the export to fail");
+    } catch (SQLException ex) {
+      assertEquals("Connection reset", ex.getMessage());
+    }
+    Map<String, Long> pages = range.getPages();
+    assertEquals(Arrays.asList(part(1).getPath(), part(2).getPath(), part(3).getPath()),
+        new ArrayList<>(pages.keySet()));
+    assertEquals(Arrays.asList(8L, 8L, 4L), new ArrayList<>(pages.values()));
+    assertEquals(3, range.getLastPart());
+    for (int i = 1; i <= 3; i++) {
+      assertTrue(new File(part(i).getPath() + AvroWriter.TEMP_SUFFIX).exists());
+    }
+    // Files after the last page are removed, their rows are written again
+    assertFalse(new File(part(4).getPath() + AvroWriter.TEMP_SUFFIX).exists());
+    assertFalse(new File(part(5).getPath() + AvroWriter.TEMP_SUFFIX).exists());
+
+    Map<String, Long> files = writer.write(connection(50, -1), range.sql(), path, "db", "t", range);
+    assertEquals(SELECT + " where id >= 20 AND id < 50 ORDER BY id", queries.get(1));
+    assertEquals(range.sql(), range.resumeSql());
+
+    List<Long> ids = new ArrayList<>();
+    int part = 0;
+    for (Map.Entry<String, Long> file : files.entrySet()) {
+      assertEquals(part(++part).getPath(), file.getKey());
+      List<Long> fileIds = ids(new File(file.getKey()));
+      assertEquals(file.getValue().longValue(), fileIds.size());
+      ids.addAll(fileIds);
+    }
+    List<Long> expected = new ArrayList<>();
+    for (long id = 0; id < 50; id++) {
+      expected.add(id);
+    }
+    assertEquals(expected, ids);
+    File[] left = folder.getRoot().listFiles((dir, name) -> name.endsWith(AvroWriter.TEMP_SUFFIX));
+    assertEquals(0, left.length);
+  }
+}
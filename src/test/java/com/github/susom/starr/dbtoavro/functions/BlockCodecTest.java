@@ -0,0 +1,146 @@
+package com.github.susom.starr.dbtoavro.functions;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+
+import com.github.luben.zstd.Zstd;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+import org.junit.Test;
+import org.tukaani.xz.XZInputStream;
+import org.xerial.snappy.Snappy;
+
+public class BlockCodecTest {
+
+  private static byte[] text() {
+    StringBuilder rows = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      rows.append(i).append("|PATIENT ").append(i % 37).append("|2019-01-").append(i % 28 + 1).append('\n');
+    }
+    return rows.toString().getBytes(StandardCharsets.UTF_8);
+  }
+
+  private static byte[] random(int length) {
+    byte[] data = new byte[length];
+    new Random(42).nextBytes(data);
+    return data;
+  }
+
+  private static byte[] bytes(ByteBuffer buffer) {
+    byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    return bytes;
+  }
+
+  private static byte[] readAll(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int n;
+    while ((n = in.read(buffer)) > 0) {
+      out.write(buffer, 0, n);
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * Decompresses a block the way the Avro codec of the same name reads it
+   */
+  private static byte[] decompress(String name, byte[] block, int length) throws IOException {
+    switch (name) {
+      case "null":
+        return block;
+      case "snappy": {
+        byte[] data = Snappy.uncompress(Arrays.copyOf(block, block.length - 4));
+        CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        assertEquals((int) crc.getValue(), ByteBuffer.wrap(block, block.length - 4, 4).getInt());
+        return data;
+      }
+      case "deflate":
+        return readAll(new InflaterInputStream(new ByteArrayInputStream(block), new Inflater(true)));
+      case "zstandard":
+        return Zstd.decompress(block, length);
+      case "xz":
+        return readAll(new XZInputStream(new ByteArrayInputStream(block)));
+      default:
+        throw new IllegalArgumentException(name);
+    }
+  }
+
+  @Test
+  public void codecsRoundTrip() throws IOException {
+    byte[] data = text();
+    // Only the given length of the buffer is compressed
+    byte[] buffer = Arrays.copyOf(data, data.length + 100);
+    for (String codec : new String[] {"null", "snappy", "deflate", "deflate-1", "zstd", "zstandard-19", "xz", "xz-0"}) {
+      BlockCodec blockCodec = BlockCodec.fromString(codec);
+      byte[] block = bytes(blockCodec.compress(buffer, data.length));
+      assertArrayEquals(codec, data, decompress(blockCodec.getName(), block, data.length));
+    }
+  }
+
+  @Test
+  public void codecNamesKeepTheirLevels() {
+    assertEquals("deflate", BlockCodec.fromString("deflate").toString());
+    assertEquals("deflate-1", BlockCodec.fromString("DEFLATE-1").toString());
+    assertEquals("zstandard-3", BlockCodec.fromString("zstd").toString());
+    assertEquals("zstandard-9", BlockCodec.fromString("zstandard-9").toString());
+    assertEquals("xz-6", BlockCodec.fromString("xz").toString());
+    assertEquals("snappy", BlockCodec.fromString("snappy").getName());
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void levelsAreChecked() {
+    BlockCodec.fromString("deflate-10");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void snappyTakesNoLevel() {
+    BlockCodec.fromString("snappy-1");
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void unknownCodecsAreRejected() {
+    BlockCodec.fromString("lz4");
+  }
+
+  @Test
+  public void fixedCodecAppliesToEveryTable() throws IOException {
+    CodecSelector selector = CodecSelector.fromString("zstd-1");
+    BlockCodec codec = selector.select("dbo.a", new byte[0], 0);
+    assertEquals("zstandard-1", codec.toString());
+    assertSame(codec, selector.select("dbo.b", random(1000), 1000));
+  }
+
+  @Test
+  public void autoWritesEmptyTablesWithSnappy() throws IOException {
+    assertEquals("snappy", CodecSelector.fromString("auto").select("dbo.empty", new byte[0], 0).getName());
+  }
+
+  @Test
+  public void autoLeavesIncompressibleDataUncompressed() throws IOException {
+    byte[] data = random(64 * 1024);
+    assertEquals("null", CodecSelector.fromString("auto").select("dbo.blobs", data, data.length).getName());
+  }
+
+  @Test
+  public void autoCompressesCompressibleDataAndKeepsItsChoice() throws IOException {
+    CodecSelector selector = CodecSelector.fromString("AUTO");
+    byte[] data = text();
+    BlockCodec codec = selector.select("dbo.rows", data, data.length);
+    assertNotEquals("null", codec.getName());
+    byte[] noise = random(64 * 1024);
+    assertSame(codec, selector.select("dbo.rows", noise, noise.length));
+  }
+}
@@ -0,0 +1,70 @@
+package com.github.susom.starr.dbtoavro.functions.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class OracleDatabaseFnsTest {
+
+  private static String range(long object, long loFile, long loBlock, long hiFile, long hiBlock) {
+    return " WHERE ROWID BETWEEN '" + OracleDatabaseFns.rowid(object, loFile, loBlock, 0) + "' AND '"
+        + OracleDatabaseFns.rowid(object, hiFile, hiBlock, 10000) + "'";
+  }
+
+  @Test
+  public void rowidMatchesRowidCreate() {
+    // DBMS_ROWID.ROWID_CREATE(1, 1, 1, 1, 0)
+    assertEquals("AAAAABAABAAAAABAAA", OracleDatabaseFns.rowid(1, 1, 1, 0));
+  }
+
+  @Test
+  public void rowidRoundTrips() {
+    String rowid = OracleDatabaseFns.rowid(74565, 7, 123456, 42);
+    assertEquals(18, rowid.length());
+    assertEquals(74565, OracleDatabaseFns.decode(rowid, 0, 6));
+    assertEquals(7, OracleDatabaseFns.decode(rowid, 6, 9));
+    assertEquals(123456, OracleDatabaseFns.decode(rowid, 9, 15));
+    assertEquals(42, OracleDatabaseFns.decode(rowid, 15, 18));
+  }
+
+  @Test
+  public void coalesceKeepsTheLastFileOfAChunk() {
+    String chunk = range(100, 4, 128, 6, 511);
+    assertEquals(Collections.singletonList(chunk),
+        OracleDatabaseFns.coalesceRowidRanges(Collections.singletonList(chunk)));
+  }
+
+  @Test
+  public void coalesceMergesAdjacentBlocks() {
+    List<String> chunks = Arrays.asList(range(100, 4, 256, 4, 383), range(100, 4, 128, 4, 255));
+    assertEquals(Collections.singletonList(range(100, 4, 128, 4, 383)),
+        OracleDatabaseFns.coalesceRowidRanges(chunks));
+  }
+
+  @Test
+  public void coalesceMergesAcrossFilesOnlyWhereAChunkEnds() {
+    List<String> chunks = Arrays.asList(range(100, 5, 64, 5, 191), range(100, 4, 128, 5, 63));
+    assertEquals(Collections.singletonList(range(100, 4, 128, 5, 191)),
+        OracleDatabaseFns.coalesceRowidRanges(chunks));
+    // Block 256 of file 5 follows block 255 of file 4 only by number
+    chunks = Arrays.asList(range(100, 4, 128, 4, 255), range(100, 5, 256, 5, 383));
+    assertEquals(
+        Collections.singletonList(range(100, 4, 128, 4, 255) + " OR" + range(100, 5, 256, 5, 383).substring(6)),
+        OracleDatabaseFns.coalesceRowidRanges(chunks));
+  }
+
+  @Test
+  public void coalesceSeparatesDataObjectsAndLeavesOtherChunks() {
+    List<String> chunks =
+        Arrays.asList(range(200, 4, 128, 4, 255), " ", range(100, 4, 128, 4, 255), range(100, 4, 512, 4, 639));
+    assertEquals(
+        Arrays.asList(
+            " ",
+            range(100, 4, 128, 4, 255) + " OR" + range(100, 4, 512, 4, 639).substring(6),
+            range(200, 4, 128, 4, 255)),
+        OracleDatabaseFns.coalesceRowidRanges(chunks));
+  }
+}
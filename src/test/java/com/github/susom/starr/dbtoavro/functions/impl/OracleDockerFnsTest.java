@@ -0,0 +1,66 @@
+package com.github.susom.starr.dbtoavro.functions.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import com.github.susom.starr.dbtoavro.entity.Job;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class OracleDockerFnsTest {
+
+  private static Job job(List<String> schemas, List<String> tables, List<String> tableExclusions) {
+    return new Job.Builder().schemas(schemas).tables(tables).tableExclusions(tableExclusions).build();
+  }
+
+  @Test
+  public void noFiltersImportEverything() {
+    assertEquals(Collections.emptyList(),
+        OracleDockerFns.impdpFilters(job(Collections.emptyList(), Collections.emptyList(), Collections.emptyList())));
+  }
+
+  @Test
+  public void tablesAreKeptInTheSchemasImported() {
+    Job job =
+        job(
+            Arrays.asList("HR", "SALES"),
+            Arrays.asList("HR.EMP", "SALES.ORDERS", "HR.DEPT", "OTHER.X", "NODOT"),
+            Collections.singletonList("hr\\.emp"));
+    assertEquals(
+        Arrays.asList("EXCLUDE=SCHEMA:\"NOT IN ('HR','SALES')\"", "EXCLUDE=TABLE:\"NOT IN ('DEPT','ORDERS')\""),
+        OracleDockerFns.impdpFilters(job));
+  }
+
+  @Test
+  public void tablesApplyToEverySchemaWithoutSchemas() {
+    Job job = job(Collections.emptyList(), Arrays.asList("SALES.ORDERS", "HR.EMP"), Collections.emptyList());
+    assertEquals(Collections.singletonList("EXCLUDE=TABLE:\"NOT IN ('EMP','ORDERS')\""),
+        OracleDockerFns.impdpFilters(job));
+  }
+
+  @Test
+  public void tablesAllExcludedLeaveTheTablesToTheExport() {
+    Job job = job(Collections.singletonList("HR"), Collections.singletonList("HR.EMP"),
+        Collections.singletonList(".*EMP"));
+    assertEquals(Collections.singletonList("EXCLUDE=SCHEMA:\"NOT IN ('HR')\""), OracleDockerFns.impdpFilters(job));
+  }
+
+  @Test
+  public void exclusionsOnlyApplyToNamesExcludedInEverySchema() {
+    Job job =
+        job(
+            Arrays.asList("HR", "SALES"),
+            Collections.emptyList(),
+            Arrays.asList("HR.AUDIT", "SALES\\.AUDIT", "HR\\.TMP", "HR\\..*"));
+    assertEquals(
+        Arrays.asList("EXCLUDE=SCHEMA:\"NOT IN ('HR','SALES')\"", "EXCLUDE=TABLE:\"IN ('AUDIT')\""),
+        OracleDockerFns.impdpFilters(job));
+  }
+
+  @Test
+  public void exclusionsNeedSchemas() {
+    Job job = job(Collections.emptyList(), Collections.emptyList(), Collections.singletonList("HR.AUDIT"));
+    assertEquals(Collections.emptyList(), OracleDockerFns.impdpFilters(job));
+  }
+}
@@ -0,0 +1,66 @@
+package com.github.susom.starr.dbtoavro.functions.impl;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import org.junit.Test;
+
+public class SqlServerDatabaseFnsTest {
+
+  /**
+   * Histogram step: upper key, rows between it and the previous key, rows equal to it
+   */
+  private static Long[] step(Long key, long rangeRows, long equalRows) {
+    return new Long[] {key, rangeRows, equalRows};
+  }
+
+  @Test
+  public void evenStepsAreCutAfterEachChunk() {
+    List<Long[]> steps =
+        Arrays.asList(step(100L, 99, 1), step(200L, 99, 1), step(300L, 99, 1), step(400L, 99, 1));
+    assertEquals(Arrays.asList(101L, 201L, 301L, 401L), SqlServerDatabaseFns.histogramCuts(steps, 4, false));
+  }
+
+  @Test
+  public void largeStepsAreCutBetweenTheirKeys() {
+    List<Long[]> steps = Arrays.asList(step(0L, 0, 0), step(1000L, 1000, 0));
+    assertEquals(Arrays.asList(250L, 500L, 750L, 1000L), SqlServerDatabaseFns.histogramCuts(steps, 4, false));
+  }
+
+  @Test
+  public void heavyKeysGetAChunkToThemselves() {
+    List<Long[]> steps = Arrays.asList(step(10L, 0, 50), step(20L, 0, 500), step(30L, 0, 50));
+    assertEquals(Arrays.asList(20L, 21L), SqlServerDatabaseFns.histogramCuts(steps, 6, false));
+    // A date key is given the rest of its minute
+    steps = Collections.singletonList(step(90_000L, 0, 500));
+    assertEquals(Collections.singletonList(120_000L), SqlServerDatabaseFns.histogramCuts(steps, 5, true));
+  }
+
+  @Test
+  public void nullStepsAreLeftOut() {
+    List<Long[]> steps = Arrays.asList(step(null, 0, 500), step(100L, 99, 1));
+    assertEquals(Collections.singletonList(101L), SqlServerDatabaseFns.histogramCuts(steps, 1, false));
+  }
+
+  @Test
+  public void cutsOnlyMoveForward() {
+    List<Long> cuts = new ArrayList<>();
+    SqlServerDatabaseFns.addCut(cuts, 10, false);
+    SqlServerDatabaseFns.addCut(cuts, 10, false);
+    SqlServerDatabaseFns.addCut(cuts, 5, false);
+    SqlServerDatabaseFns.addCut(cuts, 11, false);
+    assertEquals(Arrays.asList(10L, 11L), cuts);
+  }
+
+  @Test
+  public void dateCutsAreWholeMinutes() {
+    List<Long> cuts = new ArrayList<>();
+    SqlServerDatabaseFns.addCut(cuts, 90_000, true);
+    SqlServerDatabaseFns.addCut(cuts, 119_999, true);
+    SqlServerDatabaseFns.addCut(cuts, 120_000, true);
+    assertEquals(Arrays.asList(60_000L, 120_000L), cuts);
+  }
+}